@@ -28,14 +28,17 @@ dependencies {
 
 tasks.test {
     useJUnitPlatform()
+    jvmArgs("--add-modules", "jdk.incubator.vector")
 }
 
 tasks.withType<KotlinCompile> {
     kotlinOptions.jvmTarget = "17"
+    kotlinOptions.freeCompilerArgs += "-Xadd-modules=jdk.incubator.vector"
 }
 
 application {
     mainClass.set("MainKt")
+    applicationDefaultJvmArgs = listOf("--add-modules", "jdk.incubator.vector")
 }
 val compileKotlin: KotlinCompile by tasks
 compileKotlin.kotlinOptions {
@@ -1,60 +1,242 @@
 package ru.ya.vsz.terricon.art
 
+import ru.ya.vsz.terricon.hash.XxHash64
+import ru.ya.vsz.terricon.lang.packInts
 import java.awt.Color
 import java.awt.image.BufferedImage
+import java.awt.image.DataBufferInt
+import java.io.Closeable
 import java.io.File
+import java.io.IOException
+import java.io.Writer
 import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.Paths
 import java.nio.file.StandardOpenOption.*
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.IntStream
 import javax.imageio.ImageIO
 
+/**
+ * Color of a pixel as a packed `0xAARRGGBB` int, as [Color.getRGB], without a [Color] per pixel.
+ */
+fun interface PixelFunction {
+    fun argb(x: Int, y: Int): Int
+}
+
+/**
+ * Packs components `[0, 255]` as [Color.getRGB] of `Color(r, g, b, a)` does.
+ * @throws IllegalArgumentException if a component is out of range, as the [Color] constructor does.
+ */
+fun argb(r: Int = 0, g: Int = 0, b: Int = 0, a: Int = 255): Int {
+    require(r in 0..255 && g in 0..255 && b in 0..255 && a in 0..255) { "Color component out of [0, 255]: r=$r, g=$g, b=$b, a=$a" }
+    return (a shl 24) or (r shl 16) or (g shl 8) or b
+}
+
+/**
+ * Packed color of hue [h], saturation [s] and brightness [b], as [Color.getRGB] of [Color.getHSBColor].
+ */
+fun hsb(h: Float = 1f, s: Float = 1f, b: Float = 1f): Int {
+    return Color.HSBtoRGB(h, s, b)
+}
 
+/**
+ * Markdown file [mainFileName] in [filePath] with pictures saved next to it, written through one buffered
+ * writer until [close]. Hashes of the pictures are kept in `<mainFileName>.pictures` between builds,
+ * so a picture whose pixels did not change is neither encoded nor written again.
+ *
+ * Pictures are encoded to PNG on [encodingThreads] background threads while the next ones render;
+ * with [PENDING_PICTURES] per thread waiting, the caller encodes the next one itself. Numbering and
+ * the markdown do not depend on the order encodings finish, failures are thrown by [close].
+ */
 class Article(
     private val filePath: String = "src/main/resources/article/",
     mainFileName: String = "output.md",
-) {
+    encodingThreads: Int = maxOf(1, Runtime.getRuntime().availableProcessors() / 2),
+) : Closeable {
     private val mainFilePath = Paths.get(filePath, mainFileName)
+    private val hashesPath = Paths.get(filePath, "$mainFileName.pictures")
     private val picturesCounter = AtomicInteger()
-    private val fileStarted = AtomicBoolean(false)
+    private val previousHashes: Map<String, Long> = readHashes()
+    private val hashes = LinkedHashMap<String, Long>()
+    private val encodings = LinkedHashMap<String, Future<*>>()
+    private val encoder: ThreadPoolExecutor
+    private var writer: Writer? = null
+    private var closed = false
 
+    init {
+        require(encodingThreads > 0) { "Encoding threads $encodingThreads is not positive" }
+        val threadCounter = AtomicInteger()
+        encoder = ThreadPoolExecutor(
+            encodingThreads, encodingThreads, 0, TimeUnit.MILLISECONDS,
+            ArrayBlockingQueue(encodingThreads * PENDING_PICTURES),
+            { task -> Thread(task, "article-png-" + threadCounter.incrementAndGet()).also { it.isDaemon = true } },
+            ThreadPoolExecutor.CallerRunsPolicy(),
+        )
+    }
+
+    @Synchronized
     operator fun plus(text: String): Article {
-        val bytes = text.toByteArray(StandardCharsets.UTF_8)
-        if (fileStarted.compareAndSet(false, true)) {
-            Files.write(mainFilePath, bytes, CREATE, TRUNCATE_EXISTING)
-        } else {
-            Files.write(mainFilePath, bytes, APPEND)
-        }
+        check(!closed) { "Article $mainFilePath is closed" }
+        val writer = writer ?: Files.newBufferedWriter(mainFilePath, StandardCharsets.UTF_8, CREATE, TRUNCATE_EXISTING, WRITE)
+        this.writer = writer
+        writer.write(text)
         return this
     }
 
+    /**
+     * Image of [width] x [height] pixels colored by [pixelFunction]. Pixels are written straight into
+     * the raster in [TILE_SIZE] square tiles, computed on the common fork-join pool if [parallel]:
+     * then [pixelFunction] must be a pure function of `(x, y)`.
+     */
     open class Picture(
         private val width: Int,
         private val height: Int,
-        pixelColorFunction: (x: Int, y: Int) -> Color,
+        parallel: Boolean = false,
+        pixelFunction: PixelFunction,
     ) {
         val image: BufferedImage = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
 
+        /**
+         * Hash of the size and the current pixels of [image], including whatever was drawn on it.
+         */
+        fun contentHash(): Long {
+            return XxHash64(packInts(width, height)).hash((image.raster.dataBuffer as DataBufferInt).data)
+        }
+
+        /**
+         * Copy of the current pixels of [image], which stays the same whatever is drawn on [image] later.
+         */
+        fun snapshot(): BufferedImage {
+            val result = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+            val pixels = (image.raster.dataBuffer as DataBufferInt).data
+            System.arraycopy(pixels, 0, (result.raster.dataBuffer as DataBufferInt).data, 0, pixels.size)
+            return result
+        }
+
         init {
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    image.setRGB(x, y, pixelColorFunction(x, y).rgb)
+            val pixels = (image.raster.dataBuffer as DataBufferInt).data
+            val tilesX = (width + TILE_SIZE - 1) / TILE_SIZE
+            val tilesY = (height + TILE_SIZE - 1) / TILE_SIZE
+            val tiles = IntStream.range(0, tilesX * tilesY)
+            (if (parallel) tiles.parallel() else tiles).forEach { tile ->
+                val fromX = tile % tilesX * TILE_SIZE
+                val fromY = tile / tilesX * TILE_SIZE
+                for (y in fromY until minOf(fromY + TILE_SIZE, height)) {
+                    for (x in fromX until minOf(fromX + TILE_SIZE, width)) {
+                        pixels[y * width + x] = pixelFunction.argb(x, y) and RGB_MASK
+                    }
                 }
             }
         }
+
+        companion object {
+            const val TILE_SIZE = 64
+            private const val RGB_MASK = 0xFFFFFF
+
+            /**
+             * Picture colored by [pixelColorFunction], a [Color] per pixel.
+             */
+            fun ofColors(
+                width: Int,
+                height: Int,
+                parallel: Boolean = false,
+                pixelColorFunction: (x: Int, y: Int) -> Color,
+            ): Picture = Picture(width, height, parallel) { x, y -> pixelColorFunction(x, y).rgb }
+        }
     }
 
+    /**
+     * Adds [picture] as it is now: a [Picture.snapshot] is encoded, so drawing on it afterwards changes nothing.
+     */
+    @Synchronized
     operator fun plus(picture: Picture): Article {
+        check(!closed) { "Article $mainFilePath is closed" }
         val fileName = "pic" + picturesCounter.incrementAndGet() + ".png"
-        ImageIO.write(picture.image, "png", File(filePath, fileName))
+        val file = File(filePath, fileName)
+        val hash = picture.contentHash()
+        if (previousHashes[fileName] != hash || !file.isFile) {
+            val image = picture.snapshot()
+            encodings[fileName] = encoder.submit { ImageIO.write(image, "png", file) }
+        }
+        hashes[fileName] = hash
         plus("![]($fileName)")
         return this
     }
 
     operator fun plus(pictureFactory: () -> Picture) = plus(pictureFactory.invoke())
+
+    /**
+     * Waits for the pictures to be written, flushes the markdown and saves the hashes of the pictures
+     * written for the next build. Throws the first failure, encoding or writing, with the others suppressed.
+     */
+    @Synchronized
+    override fun close() {
+        if (closed) {
+            return
+        }
+        closed = true
+        encoder.shutdown()
+        val failures = ArrayList<IOException>()
+        for ((fileName, encoding) in encodings) {
+            try {
+                encoding.get()
+            } catch (ex: ExecutionException) {
+                hashes.remove(fileName)
+                failures += IOException("Could not write picture $fileName", ex.cause)
+            }
+        }
+        try {
+            writer?.close()
+        } catch (ex: IOException) {
+            failures += ex
+        }
+        try {
+            Files.write(hashesPath, hashes.map { (fileName, hash) -> "$fileName ${java.lang.Long.toHexString(hash)}" }, StandardCharsets.UTF_8)
+        } catch (ex: IOException) {
+            failures += ex
+        }
+        if (failures.isNotEmpty()) {
+            val failure = failures.first()
+            failures.drop(1).forEach { failure.addSuppressed(it) }
+            throw failure
+        }
+    }
+
     override fun toString(): String {
         return "Article saved to file $mainFilePath"
     }
+
+    companion object {
+        const val PENDING_PICTURES = 2
+    }
+
+    /**
+     * Hashes saved by the previous build. Lines that do not parse are skipped and an unreadable file counts
+     * as empty: at worst the pictures are written again.
+     */
+    private fun readHashes(): Map<String, Long> {
+        if (!Files.isRegularFile(hashesPath)) {
+            return emptyMap()
+        }
+        val lines = try {
+            Files.readAllLines(hashesPath, StandardCharsets.UTF_8)
+        } catch (ex: IOException) {
+            return emptyMap()
+        }
+        val result = HashMap<String, Long>()
+        for (line in lines) {
+            val fields = line.split(' ')
+            val hash = if (fields.size == 2) fields[1].toULongOrNull(16) else null
+            if (hash != null) {
+                result[fields[0]] = hash.toLong()
+            }
+        }
+        return result
+    }
 }
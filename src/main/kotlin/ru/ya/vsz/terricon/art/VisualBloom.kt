@@ -3,9 +3,17 @@
 package ru.ya.vsz.terricon.art
 
 import org.intellij.lang.annotations.Language
+import ru.ya.vsz.terricon.hash.fmix64
+import ru.ya.vsz.terricon.hash.hash32
+import ru.ya.vsz.terricon.hash.mix32
+import ru.ya.vsz.terricon.hash.reduce
+import ru.ya.vsz.terricon.lang.BinaryFuseFilter
+import ru.ya.vsz.terricon.lang.BloomFilter
+import ru.ya.vsz.terricon.lang.BooleanArray
+import ru.ya.vsz.terricon.lang.CuckooFilter
+import ru.ya.vsz.terricon.lang.MembershipFilter
 import java.awt.Color
 import java.awt.Color.*
-import kotlin.math.abs
 import kotlin.math.pow
 import kotlin.math.sqrt
 import kotlin.random.Random
@@ -15,7 +23,8 @@ const val PICTURE_HEIGHT = 200
 
 var originalRadius = 20
 var filterSize = 256
-var filter: Array<Boolean> = emptyArray<Boolean>()
+var filter = BooleanArray(0)
+lateinit var bloom: BloomFilter<Long>
 var pixelHashSizeX = 50
 var pixelHashSizeY = 50
 
@@ -32,8 +41,8 @@ fun learnFilter(
     originalFunction: (Int, Int) -> Boolean,
     filterSize: Int,
     vararg hashFunctions: (Int, Int) -> Int,
-): Array<Boolean> {
-    val result = Array(filterSize) { false }
+): BooleanArray {
+    val result = BooleanArray(filterSize)
     for (y in 0 until PICTURE_HEIGHT) {
         for (x in 0 until PICTURE_WIDTH) {
             if (originalFunction(x, y)) {
@@ -46,32 +55,78 @@ fun learnFilter(
     return result
 }
 
-fun hash1(x: Int, y: Int): Int {
-    var v = x.toLong() + y.toLong() * PICTURE_WIDTH
-    v = (v shr 16 xor v) * 0x45d9f3b
-    return (abs(v) % filterSize).toInt()
+fun hash1(x: Int, y: Int): Int = reduce(mix32(x + y * PICTURE_WIDTH, 1), filterSize)
+
+fun hash2(x: Int, y: Int): Int = reduce(mix32(x + y * PICTURE_WIDTH), filterSize)
+
+fun hash3(x: Int, y: Int, maxValue: Int = filterSize): Int = reduce(hash32(x + y * PICTURE_WIDTH), maxValue)
+
+fun hash(v: Long, maxValue: Int = filterSize): Int = reduce(hash32((v ushr Integer.SIZE xor v).toInt()), maxValue)
+
+/**
+ * Pixel number for [BloomFilter] and other filters, spread over all 64 bits.
+ */
+fun pixelKey(x: Int, y: Int): Long = fmix64(x.toLong() + y.toLong() * PICTURE_WIDTH)
+
+fun originalKeys(originalFunction: (Int, Int) -> Boolean): List<Long> {
+    val result = ArrayList<Long>()
+    for (y in 0 until PICTURE_HEIGHT) {
+        for (x in 0 until PICTURE_WIDTH) {
+            if (originalFunction(x, y)) {
+                result += pixelKey(x, y)
+            }
+        }
+    }
+    return result
 }
 
-fun hash2(x: Int, y: Int): Int {
-    var v = x.toLong() + y.toLong() * PICTURE_WIDTH
-    v = (v shr 16 xor v) * 0x45d9f3b
-    v = (v shr 16 xor v) * 0x45d9f3b
-    return (abs(v) % filterSize).toInt()
+fun learnBloomFilter(originalFunction: (Int, Int) -> Boolean, fpp: Double): BloomFilter<Long> {
+    val keys = originalKeys(originalFunction)
+    val result = BloomFilter.create<Long>(keys.size.toLong(), fpp) { it }
+    keys.forEach { result.put(it) }
+    return result
+}
+
+fun learnCuckooFilter(originalFunction: (Int, Int) -> Boolean): CuckooFilter<Long> {
+    val keys = originalKeys(originalFunction)
+    val result = CuckooFilter<Long>(keys.size) { it }
+    keys.forEach { result.put(it) }
+    return result
 }
 
-fun hash3(x: Int, y: Int, maxValue: Int = filterSize): Int {
-    var v = x.toLong() + y.toLong() * PICTURE_WIDTH
-    v = (v shr 16 xor v) * 0x45d9f3b
-    v = (v shr 16 xor v) * 0x45d9f3b
-    v = (v shr 16 xor v)
-    return (abs(v) % maxValue).toInt()
+fun learnBinaryFuseFilter(originalFunction: (Int, Int) -> Boolean): BinaryFuseFilter<Long> =
+    BinaryFuseFilter.of(originalKeys(originalFunction)) { it }
+
+fun filterPicture(originalFunction: (Int, Int) -> Boolean, filter: MembershipFilter<Long>) = Picture.ofColors { x, y ->
+    if (originalFunction(x, y)) BLUE else if (filter.mightContain(pixelKey(x, y))) YELLOW else BLACK
 }
 
-fun hash(v: Long, maxValue: Int = filterSize): Int {
-    var p = (v shr 16 xor v) * 0x45d9f3b
-    p = (p shr 16 xor p) * 0x45d9f3b
-    p = (p shr 16 xor p)
-    return (abs(p) % maxValue).toInt()
+/**
+ * Markdown table of size and false positives on the picture for the filters learned on [originalFunction].
+ */
+fun filtersTable(originalFunction: (Int, Int) -> Boolean): String {
+    val filters = listOf(
+        "Блума, 5%" to learnBloomFilter(originalFunction, 0.05),
+        "Блума, 0.4%" to learnBloomFilter(originalFunction, 0.004),
+        "кукушкин" to learnCuckooFilter(originalFunction),
+        "бинарный fuse" to learnBinaryFuseFilter(originalFunction),
+    )
+    val keys = originalKeys(originalFunction).size
+    val negatives = PICTURE_WIDTH * PICTURE_HEIGHT - keys
+    val result = StringBuilder("| Фильтр | Байт на элемент | Ожидаемые ложные срабатывания | На картинке |\n|---|---|---|---|\n")
+    for ((name, filter) in filters) {
+        var falsePositives = 0
+        for (y in 0 until PICTURE_HEIGHT) {
+            for (x in 0 until PICTURE_WIDTH) {
+                if (!originalFunction(x, y) && filter.mightContain(pixelKey(x, y))) {
+                    falsePositives++
+                }
+            }
+        }
+        result.append("| $name | ${"%.2f".format(filter.sizeInBytes().toDouble() / keys)} | ")
+            .append("${"%.3f".format(filter.expectedFpp() * 100)}% | ${"%.3f".format(falsePositives * 100.0 / negatives)}% |\n")
+    }
+    return result.toString()
 }
 
 fun pixelHashWidth() = PICTURE_WIDTH / pixelHashSizeX
@@ -97,12 +152,19 @@ fun pixelHash2Rnd(x: Int, y: Int): Int = hash(pixelHash2(x, y).toLong())
 
 fun toRGB(r: Int = 0, g: Int = 0, b: Int = 0, a: Int = 255): Color = Color(r, g, b, a)
 
-fun toYellow(v: Int): Color = toRGB(r = v, g = v)
+fun yellow(v: Int): Int = argb(r = v, g = v)
 
 fun toHSB(h: Float = 1f, s: Float = 1f, b: Float = 1f): Color = getHSBColor(h, s, b)
 
-class Picture(pixelColorFunction: (x: Int, y: Int) -> Color) :
-    Article.Picture(PICTURE_WIDTH, PICTURE_HEIGHT, pixelColorFunction)
+class Picture(pixelFunction: PixelFunction) :
+    Article.Picture(PICTURE_WIDTH, PICTURE_HEIGHT, true, pixelFunction) {
+    companion object {
+        /**
+         * Picture colored by [pixelColorFunction], a [Color] per pixel.
+         */
+        fun ofColors(pixelColorFunction: (x: Int, y: Int) -> Color): Picture = Picture { x, y -> pixelColorFunction(x, y).rgb }
+    }
+}
 
 val darkRed = toRGB(r = 64)
 val darkGreen = toRGB(g = 64)
@@ -175,7 +237,7 @@ class VoronoiDelaunay {
     }
 
     fun colorH(n: Int): Float = 2 * n.toFloat() / (centers.size + 1)
-    fun color(n: Int): Color = toHSB(colorH(n))
+    fun color(n: Int): Int = hsb(colorH(n))
 
     val IPoint.nx: Int get() = this.x / pixelHashSizeX
     val IPoint.ny: Int get() = this.y / pixelHashSizeY
@@ -282,8 +344,12 @@ data class Vector(
     }
 }
 
+/**
+ * Builds the article. Not a top-level value: pictures render on the fork-join pool and call functions
+ * of this file, which would wait forever for the class initialization running the build.
+ */
 @Language("Markdown")
-val article = Article("src/main/resources/article/bloom/", "output.md") + """
+fun article() = Article("src/main/resources/article/bloom/", "output.md") + """
 ## Визуализация работы фильтра Блума
 Я очень люблю визуализации алгоритмов. В основном это интеллектуальное развлечения, вид искуства. И, может быть, помогает лучше понять (или скорее почувствовать) работу алгоритма. Сначала я хотел визуализировать собственно фильтр Блума, но по ходу работы оказалось, что визуализация хешей может быть даже более интересной, так что про хеши тут будет больше.
 Про фильтр Блума уже много написано, и кажется зачем снова о нем писать. Но как-то на лекции я увидел графическую иллюстрацию принципа работы фильтра, по которой должно было быть видно, что фильтр гарантированно пропускает все истинные значения, и плюс ещё какие-то. То есть множество истинных значений будет подмножеством того, что пропустит фильтр.
@@ -297,35 +363,33 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
 Если подзабыли, как работает фильтр Блума, лучше сначала [почитать](https://habr.com/ru/articles/788772/) от этом.
 В качестве элементов для фильтра можно взять точки на плоскости, а в качестве истинного множества – какую-нибудь узнаваемую фигуру, например, круг. Построим истинное множество:
 
-""" + Picture { x, y ->
-    if (original(x, y)) {
-        originalSize++
-        BLUE
-    } else BLACK
+""" + {
+    originalSize = originalKeys(::original).size
+    Picture.ofColors { x, y -> if (original(x, y)) BLUE else BLACK }
 } + """
 
 Для параметров фильтра Блума важно знать коэффициент заполнение истинным множеством диапазона значений. Для выбранного круга он равен ${originalSize * 100.toDouble() / PICTURE_WIDTH / PICTURE_HEIGHT}%.
 В качестве хеш - функции хочется взять что-то, похожее на случайное. Псевдослучайный хеш от числа нашел на [Stackoverflow](https://stackoverflow.com/questions/664014/what-integer-hash-function-are-good-that-accepts-an-integer-hash-key). Числом для точки вполне может быть её номер (`x + y * WIDTH`).
-Посмотрев на код хеш-функции, я заметил, что в ней трижды повторяется почти одна и та же операция: `v = (v shr 16 xor v) * 0x45d9f3b`. Конечно, сразу возник вопрос, почему именно трижды? Может, можно меньше? Или надо больше?
+Посмотрев на код хеш-функции, я заметил, что в ней трижды повторяется почти одна и та же операция: `v = (v ushr 16 xor v) * 0x45d9f3b`. Конечно, сразу возник вопрос, почему именно трижды? Может, можно меньше? Или надо больше?
 Для удобства отображения пока пусть значений хеша будет 256 (можно будет показывать одним цветовым каналом). Попробуем вариант с одной операцией. Посмотрим на значения hash-функции в каждой точке, используя для отображения одну компоненту цвета:
 
-""" + Picture { x, y -> toYellow(hash1(x, y)) } + """
+""" + Picture { x, y -> yellow(hash1(x, y)) } + """
 
 Видно, что хеш получился не слишком случайный, а хочется почему-то именно случайный, то есть с большим периодом и равномерно распределенный. Попробуем повторить операцию еще разок.
 
-""" + Picture { x, y -> toYellow(hash2(x, y)) } + """
+""" + Picture { x, y -> yellow(hash2(x, y)) } + """
 
 На глаз уже ничего не разобрать. Возможно, лучше использовать для отображения хеша существенно разные цвета?
 
-""" + Picture { x, y -> toHSB(h = hash2(x, y).toFloat() / filterSize) } + """
+""" + Picture { x, y -> hsb(h = hash2(x, y).toFloat() / filterSize) } + """
 
 Так даже хуже видно. Попробуем подсветить только одно значения хеша.
 
-""" + Picture { x, y -> if (hash2(x, y) == 128) YELLOW else BLACK } + """
+""" + Picture.ofColors { x, y -> if (hash2(x, y) == 128) YELLOW else BLACK } + """
 
 Теперь видно, что конкретные значения всё еще заметно периодичны. Придется добавить еще операцию. И снова посмотрим то же значения хеша:
 
-""" + Picture { x, y -> if (hash3(x, y) == 128) YELLOW else BLACK } + """
+""" + Picture.ofColors { x, y -> if (hash3(x, y) == 128) YELLOW else BLACK } + """
 
 Кажется, что хеш уже достаточно случаен. Хотя хорошо ли это -- не понятно, и мы ещё вернемся к этому вопросу. Перейдем уже собственно к фильтру.
 
@@ -334,19 +398,40 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
 """ + {
     filterSize = 12000
     filter = learnFilter(::original, filterSize, ::hash3)
-    Picture { x, y -> if (filter[hash3(x, y)]) YELLOW else BLACK }
+    Picture.ofColors { x, y -> if (filter[hash3(x, y)]) YELLOW else BLACK }
 } + """
 
 Для наглядности поверх снова нарисуем истинное множество.
 
-""" + Picture { x, y -> if (original(x, y)) BLUE else if (filter[hash3(x, y)]) YELLOW else BLACK } + """
+""" + Picture.ofColors { x, y -> if (original(x, y)) BLUE else if (filter[hash3(x, y)]) YELLOW else BLACK } + """
+
+То же самое, но уже настоящим фильтром, который мы бы и использовали: размер и количество хешей он подбирает сам по числу элементов и желаемой доле ложных срабатываний (пусть будет 5%), а все хеши получает из одного 64-битного.
+
+""" + {
+    bloom = learnBloomFilter(::original, 0.05)
+    Picture.ofColors { x, y -> if (original(x, y)) BLUE else if (bloom.mightContain(pixelKey(x, y))) YELLOW else BLACK }
+} + """
+
+Получилось ${bloom.bitSize} бит и ${bloom.hashCount} хешей, ожидаемая доля ложных срабатываний ${"%.1f".format(bloom.expectedFpp() * 100)}%, а занимает он ${bloom.sizeInBytes()} байт (`Array<Boolean>` того же размера занял бы в 32-64 раза больше).
+
+Фильтр Блума не единственный способ хранить такое приблизительное множество. Фильтр с кукушкиным хешированием хранит 16-битные отпечатки элементов в одной из двух корзин и умеет удалять элементы:
+
+""" + { filterPicture(::original, learnCuckooFilter(::original)) } + """
+
+А статический бинарный fuse-фильтр строится один раз по готовому множеству, и отпечаток элемента в нём -- xor трех 8-битных ячеек:
+
+""" + { filterPicture(::original, learnBinaryFuseFilter(::original)) } + """
+
+Сравним их на нашем круге:
+
+${filtersTable(::original)}
 
 Что ж, визуализация состоялась. Можно посмотреть, как на картинку влияет изменение количества элементов фильтра (оно же -- количество значений хеша). Или увеличить количество разных хеш-функций.
 Но хочется сделать картинку более похожей на КДПВ, там то ложно-положительная область фильтра была рядом с истинным множеством, а у нас получилось случайно разбросанная.
 
 Давайте попробуем хеш-функцию сделать локальной. Например, просто разобьем картинку на квадраты и будем считать хешем номер квадрата, в который попала точка. Нарисуем для проверки какое-то количество значений такого хеша разными цветами.
 
-""" + Picture { x, y -> toHSB(h = pixelHash(x, y).toFloat() / pixelHashFilterSize()) } + """
+""" + Picture { x, y -> hsb(h = pixelHash(x, y).toFloat() / pixelHashFilterSize()) } + """
 
 Смотрится отлично! Теперь обучим фильтр с таким хешем. Только квадратики возьмем поменьше, 10 x 10, так что элементов фильтра будет всего 600. И истинный круг сделаем побольше, при локальной хеш-функции коэффициент заполнения на качество фильтра сильно не повлияет.
 
@@ -355,7 +440,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     pixelHashSizeX = 10
     pixelHashSizeY = 10
     filter = learnFilter(::original, pixelHashFilterSize(), ::pixelHash)
-    Picture { x, y -> if (original(x, y)) BLUE else if (filter[pixelHash(x, y)]) YELLOW else BLACK }
+    Picture.ofColors { x, y -> if (original(x, y)) BLUE else if (filter[pixelHash(x, y)]) YELLOW else BLACK }
 } + """
 
 Вот теперь очень наглядно! И даже видно, что картинка похожа на обычное уменьшение разрешение (пикселизацию).
@@ -369,12 +454,12 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
 """ + {
     pixelHashSizeX = 50
     pixelHashSizeY = 50
-    Picture { x, y -> toRGB(r = 7 * pixelHash2(x, y)) }
+    Picture { x, y -> argb(r = 7 * pixelHash2(x, y)) }
 } + """
 
 Так мы сможем показать сразу несколько (до трёх, но пока две) хеш-функций на одной картинке:
 
-""" + Picture { x, y -> toRGB(r = 7 * pixelHash2(x, y), g = 10 * pixelHash(x, y)) } + """
+""" + Picture { x, y -> argb(r = 7 * pixelHash2(x, y), g = 10 * pixelHash(x, y)) } + """
 
 Здесь зелёным и красным каналами показаны значения двух хеш-функций -- "пикселизация" и "пикселизация" со смещением. И на вид кажется, что мы получили в два раза большее "разрешение" по обеим осям. Но цвет показывает только где значения функций одинаковое, а где разное. Надо ещё определиться с выбором конкретных значений, которые будут индексами битовой карты фильтра. Если использовать совпадающие значения (прямо номера квадратов), понять, за какую часть картинки отвечает какой хеш, будет трудно. Наиболее наглядно будет разделить диапазоны значений для каждой функции полностью. То есть по-сути сделать два последовательных отдельных фильтра. При этом объём данных фильтра только удвоился, а не учетверился, как было бы при использовании только одной хеш-функции и удвоенного "разрешения". Посмотрим на это всё, построив два фильтра Блума, используя две "пиксельные" хеш-функции с размером квадрата 20x20:
 
@@ -383,7 +468,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     pixelHashSizeY = 20
     val filter1 = learnFilter(::original, pixelHashFilterSize(), ::pixelHash)
     val filter2 = learnFilter(::original, pixelHash2FilterSize(), ::pixelHash2)
-    Picture { x, y ->
+    Picture.ofColors { x, y ->
         if (original(x, y)) BLUE else {
             val v1 = filter1[pixelHash(x, y)]
             val v2 = filter2[pixelHash2(x, y)]
@@ -401,7 +486,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     pixelHashSizeX = 10
     pixelHashSizeY = 10
     filter = learnFilter(::original2, pixelHashFilterSize(), ::pixelHash)
-    Picture { x, y -> if (original2(x, y)) BLUE else if (filter[pixelHash(x, y)]) YELLOW else BLACK }
+    Picture.ofColors { x, y -> if (original2(x, y)) BLUE else if (filter[pixelHash(x, y)]) YELLOW else BLACK }
 
 } + """
 
@@ -412,7 +497,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     pixelHashSizeY = 20
     val filter1 = learnFilter(::original2, pixelHashFilterSize(), ::pixelHash)
     val filter2 = learnFilter(::original2, pixelHash2FilterSize(), ::pixelHash2)
-    Picture { x, y ->
+    Picture.ofColors { x, y ->
         if (original2(x, y)) BLUE else {
             val v1 = filter1[pixelHash(x, y)]
             val v2 = filter2[pixelHash2(x, y)]
@@ -427,7 +512,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
 
 """ + {
     filter = learnFilter(::original2, pixelHash2FilterSize(), ::pixelHash, ::pixelHash2)
-    Picture { x, y ->
+    Picture.ofColors { x, y ->
         if (original2(x, y)) BLUE else {
             val v1 = filter[pixelHash(x, y)]
             val v2 = filter[pixelHash2(x, y)]
@@ -446,7 +531,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     pixelHashSizeX = 10
     pixelHashSizeY = 10
     filter = learnFilter(::original2, pixelHash2FilterSize(), ::pixelHash, ::pixelHash2)
-    Picture { x, y ->
+    Picture.ofColors { x, y ->
         if (original2(x, y)) BLUE else {
             val v1 = filter[pixelHash(x, y)]
             val v2 = filter[pixelHash2(x, y)]
@@ -462,13 +547,13 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
 """ + {
     originalRadius = 25
     filter = learnFilter(::original2, pixelHashFilterSize(), ::pixelHash)
-    Picture { x, y -> if (original2(x, y)) BLUE else if (filter[pixelHash(x, y)]) YELLOW else BLACK }
+    Picture.ofColors { x, y -> if (original2(x, y)) BLUE else if (filter[pixelHash(x, y)]) YELLOW else BLACK }
 
 } + """
 
 """ + {
     filter = learnFilter(::original2, pixelHash2FilterSize(), ::pixelHash, ::pixelHash2)
-    Picture { x, y ->
+    Picture.ofColors { x, y ->
         if (original2(x, y)) BLUE else {
             val v1 = filter[pixelHash(x, y)]
             val v2 = filter[pixelHash2(x, y)]
@@ -484,7 +569,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
 """ + {
     filterSize = pixelHash2FilterSize()
     filter = learnFilter(::original2, filterSize, ::pixelHash, ::pixelHash2Rnd)
-    Picture { x, y ->
+    Picture.ofColors { x, y ->
         if (original2(x, y)) BLUE else {
             val v1 = filter[pixelHash(x, y)]
             val v2 = filter[pixelHash2Rnd(x, y)]
@@ -508,7 +593,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     }
     Picture { x, y ->
         val nearest = centers.findNearest(x, y)
-        toHSB(
+        hsb(
             h = 0.15f + nearest.n.toFloat() / centersCount / 5f,
             s = 1f,
             b = 1f - (4.5f * nearest.distanceTo(x, y) / pictureSize).toFloat()
@@ -533,13 +618,13 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
     marginY = 5
     val v = VoronoiDelaunay()
     val picture = Picture { x, y ->
-        if (x % pixelHashSizeX == 0 || y % pixelHashSizeY == 0) BLUE
+        if (x % pixelHashSizeX == 0 || y % pixelHashSizeY == 0) BLUE.rgb
         else {
             val (center, distance) = v.findNearestNeighbor(x, y)
             if (distance < center.radius) {
                 v.color(center.n)
             } else {
-                toHSB(v.colorH(center.n), 1.0f, 0.5f)
+                hsb(v.colorH(center.n), 1.0f, 0.5f)
             }
         }
     }
@@ -582,7 +667,7 @@ val article = Article("src/main/resources/article/bloom/", "output.md") + """
             if (rightNeighbors.isNotEmpty()) {
                 resultNeighbors += rightNeighbors.maxBy { it.second }.first
             }
-            toHSB(resultNeighbors.map { vd.colorH(it.n) }.average().toFloat(), 1.0f, 0.5f)
+            hsb(resultNeighbors.map { vd.colorH(it.n) }.average().toFloat(), 1.0f, 0.5f)
         }
     }
 } + """
@@ -594,5 +679,5 @@ kotlin-jupyter-kernel
 
 
 fun main() {
-    println(article)
+    article().use { println(it) }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package ru.ya.vsz.terricon.hash
+
+import java.io.File
+
+/**
+ * Hashes of `VisualBloom.kt` before range reduction, under the names of the functions using them,
+ * and the candidates to replace them.
+ * `identity` is the baseline: the worst quality possible and the cost of the measuring loop.
+ */
+val hashSubjects = listOf(
+    HashSubject("identity", Integer.SIZE, Integer.SIZE) { it },
+    HashSubject("hash1", Integer.SIZE, Integer.SIZE) { mix32(it.toInt(), 1).toLong() },
+    HashSubject("hash2", Integer.SIZE, Integer.SIZE) { mix32(it.toInt()).toLong() },
+    HashSubject("hash3", Integer.SIZE, Integer.SIZE) { hash32(it.toInt()).toLong() },
+    HashSubject("hash", Long.SIZE_BITS, Integer.SIZE) { hash32((it ushr Integer.SIZE xor it).toInt()).toLong() },
+    HashSubject("fmix64", Long.SIZE_BITS, Long.SIZE_BITS) { fmix64(it) },
+    HashSubject("xxh64", Long.SIZE_BITS, Long.SIZE_BITS, XxHash64()::hash),
+)
+
+/**
+ * Pixel numbers `x + y * width` of [tiles] pictures stacked vertically, the structured input the hashes get
+ * in `VisualBloom.kt`, whose pictures are 300x200.
+ */
+fun pixelKeys(width: Int = 300, height: Int = 200, tiles: Int = 64): LongArray {
+    return LongArray(Math.multiplyExact(width * height, tiles)) { it.toLong() }
+}
+
+/**
+ * Writes `hash-quality.csv` and `hash-avalanche.csv` to the directory [args]`[0]`, `build` by default.
+ */
+fun main(args: Array<String>) {
+    val directory = File(args.getOrElse(0) { "build" })
+    directory.mkdirs()
+    val keys = pixelKeys()
+    val results = hashSubjects.map {
+        measure(it, keys, 1024).also { result ->
+            println("${it.name}: avalanche bias ${result.avalancheMeanBias}, chi-square score ${result.chiSquareReducedScore}, ${result.nanosPerHash} ns")
+        }
+    }
+    writeQualityCsv(results, File(directory, "hash-quality.csv").bufferedWriter())
+    writeAvalancheCsv(results, File(directory, "hash-avalanche.csv").bufferedWriter())
+}
@@ -0,0 +1,224 @@
+package ru.ya.vsz.terricon.hash
+
+import org.supercsv.io.CsvListWriter
+import org.supercsv.prefs.CsvPreference
+import java.io.Writer
+import java.util.SplittableRandom
+import java.util.function.LongToIntFunction
+import java.util.function.LongUnaryOperator
+import kotlin.math.abs
+import kotlin.math.sqrt
+
+/**
+ * Hash function under test: [keyBits] low bits of the key are significant, the result is taken
+ * from the low [bits] bits of [function].
+ */
+class HashSubject(
+    val name: String,
+    val keyBits: Int,
+    val bits: Int,
+    private val function: LongUnaryOperator,
+) {
+    init {
+        require(keyBits in 1..Long.SIZE_BITS) { "Key bits $keyBits is not in [1, 64]" }
+        require(bits in 1..Long.SIZE_BITS) { "Bits $bits is not in [1, 64]" }
+    }
+
+    private val mask = if (bits == Long.SIZE_BITS) -1L else (1L shl bits) - 1
+
+    fun hash(key: Long): Long {
+        return function.applyAsLong(key) and mask
+    }
+
+    /**
+     * [hash] mapped to `[0, range)` by multiply-shift of its top bits.
+     */
+    fun reduce(key: Long, range: Int): Int {
+        val h = hash(key)
+        return if (bits == Long.SIZE_BITS) reduce(h, range.toLong()).toInt() else reduce((h shl Integer.SIZE - bits).toInt(), range)
+    }
+
+    override fun toString(): String {
+        return "HashSubject($name, keyBits=$keyBits, bits=$bits)"
+    }
+}
+
+/**
+ * One line of the report of [measure].
+ */
+class HashQuality(
+    val subject: HashSubject,
+    /**
+     * Probabilities that output bit `j` flips when key bit `i` does, at `i * bits + j`.
+     */
+    val avalanche: DoubleArray,
+    /**
+     * Pearson statistic of the bucket counts over the structured keys: `hash and (buckets - 1)`
+     * and [HashSubject.reduce], against `buckets - 1` degrees of freedom.
+     */
+    val chiSquareLowBits: Double,
+    val chiSquareReduced: Double,
+    val buckets: Int,
+    val collisions: Long,
+    val expectedCollisions: Double,
+    val nanosPerHash: Double,
+    val nanosPerReducedHash: Double,
+) {
+    /**
+     * Mean of `|2p - 1|` over [avalanche], 0 for an ideal hash, 1 if bits never or always flip.
+     */
+    val avalancheMeanBias: Double
+        get() = avalanche.sumOf { abs(2 * it - 1) } / avalanche.size
+
+    val avalancheWorstBias: Double
+        get() = avalanche.maxOf { abs(2 * it - 1) }
+
+    /**
+     * [chiSquareReduced] in standard deviations from its expectation, beyond 3 or so the buckets are uneven.
+     */
+    val chiSquareReducedScore: Double
+        get() = (chiSquareReduced - (buckets - 1)) / sqrt(2.0 * (buckets - 1))
+
+    val chiSquareLowBitsScore: Double
+        get() = (chiSquareLowBits - (buckets - 1)) / sqrt(2.0 * (buckets - 1))
+}
+
+/**
+ * Flip probabilities of every output bit of [subject] for every key bit, over [samples] random keys.
+ */
+fun avalanche(subject: HashSubject, samples: Int, seed: Long = 42): DoubleArray {
+    require(samples > 0) { "Samples $samples is not positive" }
+    val counts = IntArray(subject.keyBits * subject.bits)
+    val random = SplittableRandom(seed)
+    val keyMask = if (subject.keyBits == Long.SIZE_BITS) -1L else (1L shl subject.keyBits) - 1
+    repeat(samples) {
+        val key = random.nextLong() and keyMask
+        val h = subject.hash(key)
+        for (i in 0 until subject.keyBits) {
+            var flipped = h xor subject.hash(key xor (1L shl i))
+            while (flipped != 0L) {
+                counts[i * subject.bits + java.lang.Long.numberOfTrailingZeros(flipped)]++
+                flipped = flipped and flipped - 1
+            }
+        }
+    }
+    return DoubleArray(counts.size) { counts[it].toDouble() / samples }
+}
+
+/**
+ * Pearson statistic of the counts of [keys] hashed into [buckets] by [bucket].
+ */
+fun chiSquare(keys: LongArray, buckets: Int, bucket: LongToIntFunction): Double {
+    require(buckets > 1) { "Buckets $buckets is less than 2" }
+    val counts = IntArray(buckets)
+    for (key in keys) {
+        counts[bucket.applyAsInt(key)]++
+    }
+    val expected = keys.size.toDouble() / buckets
+    return counts.sumOf { (it - expected) * (it - expected) } / expected
+}
+
+/**
+ * Number of [keys] whose hash equals the hash of an earlier one, [keys] being distinct.
+ */
+fun collisions(subject: HashSubject, keys: LongArray): Long {
+    val hashes = LongArray(keys.size) { subject.hash(keys[it]) }
+    hashes.sort()
+    var result = 0L
+    for (k in 1 until hashes.size) {
+        if (hashes[k] == hashes[k - 1]) {
+            result++
+        }
+    }
+    return result
+}
+
+/**
+ * Sum of the hashes of [nanosPerHash], published so that the JIT cannot drop the loop.
+ */
+@Volatile
+private var sink = 0L
+
+/**
+ * Nanoseconds per call of [hash] over `count` sequential keys, the best of [trials] runs after as many
+ * warm-up ones. A plain loop rather than a harness: the call through [HashSubject] costs about as much
+ * as the cheapest hashes, so compare the numbers with each other and with an identity subject.
+ */
+fun nanosPerHash(count: Int, trials: Int = 5, hash: LongUnaryOperator): Double {
+    require(count > 0) { "Count $count is not positive" }
+    var best = Long.MAX_VALUE
+    repeat(2 * trials) { trial ->
+        val start = System.nanoTime()
+        var sum = 0L
+        for (key in 0 until count.toLong()) {
+            sum += hash.applyAsLong(key)
+        }
+        val elapsed = System.nanoTime() - start
+        sink += sum
+        if (trial >= trials) {
+            best = minOf(best, elapsed)
+        }
+    }
+    return best.toDouble() / count
+}
+
+/**
+ * Runs every check for [subject]: [avalanche] over [samples] random keys, [chiSquare] and [collisions]
+ * over [keys], which are meant to be structured like pixel numbers, and [nanosPerHash] with and without
+ * reduction to a range of [buckets].
+ */
+fun measure(subject: HashSubject, keys: LongArray, buckets: Int, samples: Int = 10_000, count: Int = 10_000_000): HashQuality {
+    require(buckets and buckets - 1 == 0) { "Buckets $buckets is not a power of two" }
+    val pairs = keys.size.toDouble() * (keys.size - 1) / 2
+    return HashQuality(
+        subject,
+        avalanche(subject, samples),
+        chiSquare(keys, buckets) { (subject.hash(it) and buckets - 1L).toInt() },
+        chiSquare(keys, buckets) { subject.reduce(it, buckets) },
+        buckets,
+        collisions(subject, keys),
+        Math.scalb(pairs, -subject.bits),
+        nanosPerHash(count) { subject.hash(it) },
+        nanosPerHash(count) { subject.reduce(it, buckets).toLong() },
+    )
+}
+
+/**
+ * Writes one CSV line per element of [results] to [writer] and closes it.
+ */
+fun writeQualityCsv(results: List<HashQuality>, writer: Writer) {
+    CsvListWriter(writer, CsvPreference.STANDARD_PREFERENCE).use { csv ->
+        csv.writeHeader(
+            "hash", "keyBits", "bits", "avalancheMeanBias", "avalancheWorstBias",
+            "buckets", "chiSquareLowBits", "chiSquareLowBitsScore", "chiSquareReduced", "chiSquareReducedScore",
+            "collisions", "expectedCollisions", "nanosPerHash", "nanosPerReducedHash",
+        )
+        for (result in results) {
+            val subject = result.subject
+            csv.write(
+                listOf(
+                    subject.name, subject.keyBits, subject.bits, result.avalancheMeanBias, result.avalancheWorstBias,
+                    result.buckets, result.chiSquareLowBits, result.chiSquareLowBitsScore, result.chiSquareReduced, result.chiSquareReducedScore,
+                    result.collisions, result.expectedCollisions, result.nanosPerHash, result.nanosPerReducedHash,
+                )
+            )
+        }
+    }
+}
+
+/**
+ * Writes the [HashQuality.avalanche] matrices of [results] to [writer], one line per key bit and output bit, and closes it.
+ */
+fun writeAvalancheCsv(results: List<HashQuality>, writer: Writer) {
+    CsvListWriter(writer, CsvPreference.STANDARD_PREFERENCE).use { csv ->
+        csv.writeHeader("hash", "keyBit", "bit", "flipProbability")
+        for (result in results) {
+            val subject = result.subject
+            for (i in 0 until subject.keyBits) {
+                for (j in 0 until subject.bits) {
+                    csv.write(listOf(subject.name, i, j, result.avalanche[i * subject.bits + j]))
+                }
+            }
+        }
+    }
+}
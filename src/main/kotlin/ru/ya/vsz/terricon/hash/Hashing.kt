@@ -0,0 +1,45 @@
+package ru.ya.vsz.terricon.hash
+
+/**
+ * MurmurHash3 64-bit finalizer: a bijection spreading every input bit over all output bits.
+ */
+fun fmix64(value: Long): Long {
+    var h = value
+    h = (h xor (h ushr 33)) * -0xae502812aa7333L
+    h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+    return h xor (h ushr 33)
+}
+
+/**
+ * Maps a uniformly distributed 32-bit [hash] to `[0, range)` by multiply-shift (Lemire) instead of `%`:
+ * no division, no sign issues, and every value gets `2^32 / range` hashes up to one, as with `%`.
+ */
+fun reduce(hash: Int, range: Int): Int {
+    return (Integer.toUnsignedLong(hash) * range ushr Integer.SIZE).toInt()
+}
+
+/**
+ * Maps a uniformly distributed 64-bit [hash] to `[0, range)` by multiply-shift, the high half of the unsigned product.
+ */
+fun reduce(hash: Long, range: Long): Long {
+    return Math.multiplyHigh(hash, range) + (hash shr 63 and range)
+}
+
+/**
+ * [rounds] xorshift-multiply rounds with `0x45d9f3b`, a cheap 32-bit mixer, noticeably biased with one round.
+ */
+fun mix32(value: Int, rounds: Int = 2): Int {
+    var h = value
+    repeat(rounds) {
+        h = (h ushr 16 xor h) * 0x45d9f3b
+    }
+    return h
+}
+
+/**
+ * Two [mix32] rounds and a final xorshift: the full 32-bit hash with `0x45d9f3b`.
+ */
+fun hash32(value: Int): Int {
+    val h = mix32(value)
+    return h ushr 16 xor h
+}
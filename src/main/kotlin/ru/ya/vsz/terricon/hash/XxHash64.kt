@@ -0,0 +1,147 @@
+package ru.ya.vsz.terricon.hash
+
+import ru.ya.vsz.terricon.lang.packInts
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.VarHandle
+import java.nio.ByteOrder
+
+private const val P1 = -0x61c8864e7a143579L
+private const val P2 = -0x3d4d51c2d82b14b1L
+private const val P3 = 0x165667b19e3779f9L
+private const val P4 = -0x7a1435883d4d519dL
+private const val P5 = 0x27d4eb2f165667c5L
+
+private val LONGS: VarHandle = MethodHandles.byteArrayViewVarHandle(LongArray::class.java, ByteOrder.LITTLE_ENDIAN)
+private val INTS: VarHandle = MethodHandles.byteArrayViewVarHandle(IntArray::class.java, ByteOrder.LITTLE_ENDIAN)
+
+/**
+ * XXH64 with [seed], without allocation for every kind of input. A [CharSequence] is hashed
+ * as its UTF-16LE bytes, a `long` as its 8 little-endian bytes, so equal bytes give equal hashes.
+ */
+class XxHash64(val seed: Long = 0) {
+    fun hash(value: Long): Long {
+        var h = seed + P5 + Long.SIZE_BYTES
+        h = (h xor round(0, value)).rotateLeft(27) * P1 + P4
+        return avalanche(h)
+    }
+
+    /**
+     * Hash of `(x, y)` packed by [packInts].
+     */
+    fun hash(x: Int, y: Int): Long {
+        return hash(packInts(x, y))
+    }
+
+    fun hash(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset): Long {
+        if (offset < 0 || length < 0 || offset > bytes.size - length) {
+            throw IndexOutOfBoundsException()
+        }
+        return hash(
+            length,
+            { LONGS.get(bytes, offset + it) as Long },
+            { INTS.get(bytes, offset + it) as Int },
+            { bytes[offset + it].toInt() and 0xFF },
+        )
+    }
+
+    fun hash(chars: CharSequence): Long {
+        return hash(
+            chars.length * Character.BYTES,
+            {
+                val c = it / Character.BYTES
+                chars[c].code.toLong() or (chars[c + 1].code.toLong() shl 16) or
+                    (chars[c + 2].code.toLong() shl 32) or (chars[c + 3].code.toLong() shl 48)
+            },
+            { chars[it / Character.BYTES].code or (chars[it / Character.BYTES + 1].code shl 16) },
+            { chars[it / Character.BYTES].code ushr it % Character.BYTES * Byte.SIZE_BITS and 0xFF },
+        )
+    }
+
+    /**
+     * Hash of [length] ints from [offset] as their little-endian bytes.
+     */
+    fun hash(ints: IntArray, offset: Int = 0, length: Int = ints.size - offset): Long {
+        if (offset < 0 || length < 0 || offset > ints.size - length) {
+            throw IndexOutOfBoundsException()
+        }
+        return hash(
+            Math.multiplyExact(length, Integer.BYTES),
+            {
+                val i = offset + it / Integer.BYTES
+                Integer.toUnsignedLong(ints[i]) or (ints[i + 1].toLong() shl Integer.SIZE)
+            },
+            { ints[offset + it / Integer.BYTES] },
+            { ints[offset + it / Integer.BYTES] ushr it % Integer.BYTES * Byte.SIZE_BITS and 0xFF },
+        )
+    }
+
+    override fun toString(): String {
+        return "XxHash64(seed=$seed)"
+    }
+
+    /**
+     * XXH64 of [length] bytes read through [readLong], [readInt] and [readByte] at byte positions.
+     */
+    private inline fun hash(length: Int, readLong: (Int) -> Long, readInt: (Int) -> Int, readByte: (Int) -> Int): Long {
+        var position = 0
+        var h: Long
+        if (length >= 32) {
+            var v1 = seed + P1 + P2
+            var v2 = seed + P2
+            var v3 = seed
+            var v4 = seed - P1
+            while (position <= length - 32) {
+                v1 = round(v1, readLong(position))
+                v2 = round(v2, readLong(position + 8))
+                v3 = round(v3, readLong(position + 16))
+                v4 = round(v4, readLong(position + 24))
+                position += 32
+            }
+            h = v1.rotateLeft(1) + v2.rotateLeft(7) + v3.rotateLeft(12) + v4.rotateLeft(18)
+            h = mergeRound(h, v1)
+            h = mergeRound(h, v2)
+            h = mergeRound(h, v3)
+            h = mergeRound(h, v4)
+        } else {
+            h = seed + P5
+        }
+        h += length
+        while (position <= length - 8) {
+            h = (h xor round(0, readLong(position))).rotateLeft(27) * P1 + P4
+            position += 8
+        }
+        if (position <= length - 4) {
+            h = (h xor Integer.toUnsignedLong(readInt(position)) * P1).rotateLeft(23) * P2 + P3
+            position += 4
+        }
+        while (position < length) {
+            h = (h xor readByte(position).toLong() * P5).rotateLeft(11) * P1
+            position++
+        }
+        return avalanche(h)
+    }
+
+    companion object {
+        /**
+         * [count] independent hash functions, seeded from [seed] through [fmix64].
+         */
+        fun family(count: Int, seed: Long = 0): List<XxHash64> {
+            return List(count) { XxHash64(fmix64(seed + it * P1)) }
+        }
+    }
+}
+
+private fun round(accumulator: Long, input: Long): Long {
+    return (accumulator + input * P2).rotateLeft(31) * P1
+}
+
+private fun mergeRound(accumulator: Long, value: Long): Long {
+    return (accumulator xor round(0, value)) * P1 + P4
+}
+
+private fun avalanche(value: Long): Long {
+    var h = value
+    h = (h xor (h ushr 33)) * P2
+    h = (h xor (h ushr 29)) * P3
+    return h xor (h ushr 32)
+}
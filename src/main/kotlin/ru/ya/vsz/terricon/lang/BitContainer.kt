@@ -0,0 +1,528 @@
+package ru.ya.vsz.terricon.lang
+
+import java.util.function.IntConsumer
+import java.util.function.IntPredicate
+
+internal const val CHUNK_BITS = 16
+internal const val CHUNK_SIZE = 1 shl CHUNK_BITS
+internal const val CHUNK_WORDS = CHUNK_SIZE / Integer.SIZE
+private const val ARRAY_MAX_SIZE = 4096
+
+/**
+ * Receives a word of a chunk as [BooleanMatrix] stores it, bit `k` of word [index] being value `index * 32 + k`.
+ */
+internal fun interface WordConsumer {
+    fun accept(index: Int, word: Int)
+}
+
+/**
+ * Set of values in `[0, 65536)`, one chunk of a [CompressedBooleanMatrix] row, Roaring-style:
+ * a sorted array while sparse, a bitmap while dense, runs of consecutive values after [runOptimize].
+ * Mutators return the container to use from now on, which may be of another kind.
+ */
+internal sealed class BitContainer {
+    abstract val cardinality: Int
+
+    abstract operator fun contains(value: Int): Boolean
+
+    abstract fun add(value: Int): BitContainer
+
+    abstract fun remove(value: Int): BitContainer
+
+    abstract fun forEach(action: IntConsumer)
+
+    /**
+     * Passes the non-zero words of the chunk to [action] in increasing order.
+     */
+    abstract fun forEachWord(action: WordConsumer)
+
+    abstract fun sizeInBytes(): Int
+
+    abstract fun copy(): BitContainer
+
+    /**
+     * Bitmap view for reading only, it is `this` for a bitmap container.
+     */
+    abstract fun asBitmap(): BitmapContainer
+
+    fun and(other: BitContainer): BitContainer = when {
+        this is ArrayContainer -> filter { it in other }
+        other is ArrayContainer -> other.filter { it in this }
+        this is RunContainer && other is RunContainer -> merge(other) { a, b -> a && b }
+        else -> combine(other) { a, b -> a and b }
+    }
+
+    fun or(other: BitContainer): BitContainer = when {
+        this is ArrayContainer && other is ArrayContainer -> union(other)
+        this is ArrayContainer -> other.mutableBitmap().addAll(this)
+        other is ArrayContainer -> mutableBitmap().addAll(other)
+        this is RunContainer && other is RunContainer -> merge(other) { a, b -> a || b }
+        else -> combine(other) { a, b -> a or b }
+    }
+
+    fun xor(other: BitContainer): BitContainer = when {
+        this is ArrayContainer && other is ArrayContainer -> symmetricDifference(other)
+        this is ArrayContainer -> other.mutableBitmap().flipAll(this)
+        other is ArrayContainer -> mutableBitmap().flipAll(other)
+        this is RunContainer && other is RunContainer -> merge(other) { a, b -> a != b }
+        else -> combine(other) { a, b -> a xor b }
+    }
+
+    fun andNot(other: BitContainer): BitContainer = when {
+        this is ArrayContainer -> filter { it !in other }
+        other is ArrayContainer -> mutableBitmap().removeAll(other)
+        this is RunContainer && other is RunContainer -> merge(other) { a, b -> a && !b }
+        else -> combine(other) { a, b -> a and b.inv() }
+    }
+
+    /**
+     * Switches to runs of consecutive values if those take less memory.
+     */
+    fun runOptimize(): BitContainer {
+        var runs = 0
+        var previous = -2
+        forEach {
+            if (it != previous + 1) {
+                runs++
+            }
+            previous = it
+        }
+        if (runs * 2 * Character.BYTES >= sizeInBytes()) {
+            return this
+        }
+        val result = CharArray(runs * 2)
+        var count = 0
+        previous = -2
+        forEach {
+            if (it != previous + 1) {
+                result[count * 2] = it.toChar()
+                count++
+            }
+            result[count * 2 - 1] = (it - result[count * 2 - 2].code).toChar()
+            previous = it
+        }
+        return RunContainer(result, runs)
+    }
+
+    /**
+     * Bitmap of the values that can be changed without touching this container.
+     */
+    private fun mutableBitmap(): BitmapContainer =
+        if (this is BitmapContainer) BitmapContainer(words.copyOf()) else asBitmap()
+
+    private inline fun combine(other: BitContainer, operation: (Int, Int) -> Int): BitContainer {
+        val a = asBitmap().words
+        val b = other.asBitmap().words
+        return BitmapContainer(IntArray(CHUNK_WORDS) { operation(a[it], b[it]) }).optimize()
+    }
+}
+
+internal class ArrayContainer(
+    private var values: CharArray = CharArray(4),
+    private var size: Int = 0,
+) : BitContainer() {
+    override val cardinality: Int
+        get() = size
+
+    override fun contains(value: Int): Boolean {
+        return indexOf(value) >= 0
+    }
+
+    override fun add(value: Int): BitContainer {
+        val index = indexOf(value)
+        if (index >= 0) {
+            return this
+        }
+        if (size == ARRAY_MAX_SIZE) {
+            return asBitmap().add(value)
+        }
+        val position = -index - 1
+        if (size == values.size) {
+            values = values.copyOf(minOf(size * 2, ARRAY_MAX_SIZE))
+        }
+        System.arraycopy(values, position, values, position + 1, size - position)
+        values[position] = value.toChar()
+        size++
+        return this
+    }
+
+    override fun remove(value: Int): BitContainer {
+        val index = indexOf(value)
+        if (index >= 0) {
+            System.arraycopy(values, index + 1, values, index, size - index - 1)
+            size--
+        }
+        return this
+    }
+
+    override fun forEach(action: IntConsumer) {
+        for (k in 0 until size) {
+            action.accept(values[k].code)
+        }
+    }
+
+    override fun forEachWord(action: WordConsumer) {
+        var k = 0
+        while (k < size) {
+            val index = values[k].code ushr 5
+            var word = 0
+            while (k < size && values[k].code ushr 5 == index) {
+                word = word or (1 shl values[k].code)
+                k++
+            }
+            action.accept(index, word)
+        }
+    }
+
+    override fun sizeInBytes(): Int = size * Character.BYTES
+
+    override fun copy(): BitContainer = ArrayContainer(values.copyOf(size), size)
+
+    override fun asBitmap(): BitmapContainer {
+        val result = BitmapContainer()
+        forEach { result.add(it) }
+        return result
+    }
+
+    fun filter(predicate: IntPredicate): ArrayContainer {
+        val result = CharArray(size)
+        var count = 0
+        for (k in 0 until size) {
+            if (predicate.test(values[k].code)) {
+                result[count++] = values[k]
+            }
+        }
+        return ArrayContainer(result, count)
+    }
+
+    fun union(other: ArrayContainer): BitContainer {
+        val result = CharArray(size + other.size)
+        var count = 0
+        var a = 0
+        var b = 0
+        while (a < size && b < other.size) {
+            val x = values[a]
+            val y = other.values[b]
+            result[count++] = if (x <= y) x else y
+            if (x <= y) a++
+            if (y <= x) b++
+        }
+        while (a < size) {
+            result[count++] = values[a++]
+        }
+        while (b < other.size) {
+            result[count++] = other.values[b++]
+        }
+        return of(result, count)
+    }
+
+    /**
+     * Values in exactly one of the two arrays, by a sorted merge.
+     */
+    fun symmetricDifference(other: ArrayContainer): BitContainer {
+        val result = CharArray(size + other.size)
+        var count = 0
+        var a = 0
+        var b = 0
+        while (a < size && b < other.size) {
+            val x = values[a]
+            val y = other.values[b]
+            if (x < y) {
+                result[count++] = x
+                a++
+            } else if (y < x) {
+                result[count++] = y
+                b++
+            } else {
+                a++
+                b++
+            }
+        }
+        while (a < size) {
+            result[count++] = values[a++]
+        }
+        while (b < other.size) {
+            result[count++] = other.values[b++]
+        }
+        return of(result, count)
+    }
+
+    private fun indexOf(value: Int): Int {
+        var low = 0
+        var high = size - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val current = values[middle].code
+            when {
+                current < value -> low = middle + 1
+                current > value -> high = middle - 1
+                else -> return middle
+            }
+        }
+        return -(low + 1)
+    }
+
+    private companion object {
+        /**
+         * The first [count] sorted [values], as a bitmap if they are too many for an array.
+         */
+        fun of(values: CharArray, count: Int): BitContainer {
+            if (count <= ARRAY_MAX_SIZE) {
+                return ArrayContainer(values, count)
+            }
+            val result = BitmapContainer()
+            for (k in 0 until count) {
+                result.add(values[k].code)
+            }
+            return result
+        }
+    }
+}
+
+internal class BitmapContainer(
+    val words: IntArray = IntArray(CHUNK_WORDS),
+) : BitContainer() {
+    override var cardinality: Int = words.sumOf { Integer.bitCount(it) }
+        private set
+
+    override fun contains(value: Int): Boolean {
+        return words[value ushr 5] and (1 shl value) != 0
+    }
+
+    override fun add(value: Int): BitContainer {
+        val word = words[value ushr 5]
+        if (word and (1 shl value) == 0) {
+            words[value ushr 5] = word or (1 shl value)
+            cardinality++
+        }
+        return this
+    }
+
+    override fun remove(value: Int): BitContainer {
+        val word = words[value ushr 5]
+        if (word and (1 shl value) != 0) {
+            words[value ushr 5] = word and (1 shl value).inv()
+            cardinality--
+        }
+        return optimize()
+    }
+
+    override fun forEach(action: IntConsumer) {
+        for (k in words.indices) {
+            var word = words[k]
+            while (word != 0) {
+                action.accept(k * Integer.SIZE + Integer.numberOfTrailingZeros(word))
+                word = word and word - 1
+            }
+        }
+    }
+
+    override fun forEachWord(action: WordConsumer) {
+        for (k in words.indices) {
+            if (words[k] != 0) {
+                action.accept(k, words[k])
+            }
+        }
+    }
+
+    override fun sizeInBytes(): Int = CHUNK_WORDS * Integer.BYTES
+
+    override fun copy(): BitContainer = BitmapContainer(words.copyOf())
+
+    override fun asBitmap(): BitmapContainer = this
+
+    /**
+     * Adds all values in `[from, to)`.
+     */
+    fun addRange(from: Int, to: Int) {
+        var value = from
+        while (value < to) {
+            val bits = minOf(Integer.SIZE - value % Integer.SIZE, to - value)
+            val mask = (if (bits == Integer.SIZE) 0.inv() else (1 shl bits) - 1) shl value % Integer.SIZE
+            val word = words[value ushr 5]
+            cardinality += Integer.bitCount(mask and word.inv())
+            words[value ushr 5] = word or mask
+            value += bits
+        }
+    }
+
+    fun addAll(values: ArrayContainer): BitContainer {
+        values.forEach { add(it) }
+        return optimize()
+    }
+
+    fun flipAll(values: ArrayContainer): BitContainer {
+        values.forEach { value ->
+            val word = words[value ushr 5] xor (1 shl value)
+            words[value ushr 5] = word
+            cardinality += if (word and (1 shl value) != 0) 1 else -1
+        }
+        return optimize()
+    }
+
+    fun removeAll(values: ArrayContainer): BitContainer {
+        values.forEach { value ->
+            val word = words[value ushr 5]
+            if (word and (1 shl value) != 0) {
+                words[value ushr 5] = word and (1 shl value).inv()
+                cardinality--
+            }
+        }
+        return optimize()
+    }
+
+    fun optimize(): BitContainer {
+        if (cardinality > ARRAY_MAX_SIZE) {
+            return this
+        }
+        val result = CharArray(cardinality)
+        var count = 0
+        forEach { result[count++] = it.toChar() }
+        return ArrayContainer(result, count)
+    }
+}
+
+/**
+ * Runs stored as `(start, length - 1)` pairs. Mutations fall back to an array or a bitmap.
+ */
+internal class RunContainer(
+    private val runs: CharArray,
+    private val count: Int,
+) : BitContainer() {
+    override val cardinality: Int = (0 until count).sumOf { runs[it * 2 + 1].code + 1 }
+
+    override fun contains(value: Int): Boolean {
+        var low = 0
+        var high = count - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val start = runs[middle * 2].code
+            when {
+                value < start -> high = middle - 1
+                value > start + runs[middle * 2 + 1].code -> low = middle + 1
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    override fun add(value: Int): BitContainer {
+        return if (contains(value)) this else expand().add(value)
+    }
+
+    override fun remove(value: Int): BitContainer {
+        return if (contains(value)) expand().remove(value) else this
+    }
+
+    override fun forEach(action: IntConsumer) {
+        for (k in 0 until count) {
+            val start = runs[k * 2].code
+            for (value in start..start + runs[k * 2 + 1].code) {
+                action.accept(value)
+            }
+        }
+    }
+
+    override fun forEachWord(action: WordConsumer) {
+        var index = -1
+        var word = 0
+        for (k in 0 until count) {
+            var value = start(k)
+            val end = end(k)
+            while (value < end) {
+                val bits = minOf(Integer.SIZE - value % Integer.SIZE, end - value)
+                val mask = (if (bits == Integer.SIZE) 0.inv() else (1 shl bits) - 1) shl value % Integer.SIZE
+                if (value ushr 5 != index) {
+                    if (index >= 0) {
+                        action.accept(index, word)
+                    }
+                    index = value ushr 5
+                    word = 0
+                }
+                word = word or mask
+                value += bits
+            }
+        }
+        if (index >= 0) {
+            action.accept(index, word)
+        }
+    }
+
+    override fun sizeInBytes(): Int = count * 2 * Character.BYTES
+
+    override fun copy(): BitContainer = this
+
+    override fun asBitmap(): BitmapContainer {
+        val result = BitmapContainer()
+        for (k in 0 until count) {
+            val start = runs[k * 2].code
+            result.addRange(start, start + runs[k * 2 + 1].code + 1)
+        }
+        return result
+    }
+
+    /**
+     * Values `v` for which `operation(v in this, v in other)` holds, `operation(false, false)` being `false`.
+     * Sweeps the run boundaries of both containers, so the cost depends on the number of runs only.
+     */
+    fun merge(other: RunContainer, operation: (Boolean, Boolean) -> Boolean): BitContainer {
+        val result = CharArray((count + other.count) * 2)
+        var runs = 0
+        var a = 0
+        var b = 0
+        var position = 0
+        while (a < count || b < other.count) {
+            val inThis = a < count && start(a) <= position
+            val inOther = b < other.count && other.start(b) <= position
+            val next = minOf(
+                if (a == count) CHUNK_SIZE else if (inThis) end(a) else start(a),
+                if (b == other.count) CHUNK_SIZE else if (inOther) other.end(b) else other.start(b),
+            )
+            if (operation(inThis, inOther)) {
+                if (runs > 0 && result[runs * 2 - 2].code + result[runs * 2 - 1].code + 1 == position) {
+                    result[runs * 2 - 1] = (next - result[runs * 2 - 2].code - 1).toChar()
+                } else {
+                    result[runs * 2] = position.toChar()
+                    result[runs * 2 + 1] = (next - position - 1).toChar()
+                    runs++
+                }
+            }
+            position = next
+            if (a < count && end(a) <= position) a++
+            if (b < other.count && other.end(b) <= position) b++
+        }
+        return RunContainer(result, runs).compact()
+    }
+
+    /**
+     * The smallest of this, an array and a bitmap of the same values.
+     */
+    private fun compact(): BitContainer {
+        return when {
+            cardinality <= ARRAY_MAX_SIZE && cardinality * Character.BYTES <= sizeInBytes() -> {
+                val values = CharArray(cardinality)
+                var k = 0
+                forEach { values[k++] = it.toChar() }
+                ArrayContainer(values, cardinality)
+            }
+            sizeInBytes() > CHUNK_WORDS * Integer.BYTES -> asBitmap()
+            else -> this
+        }
+    }
+
+    private fun start(k: Int): Int = runs[k * 2].code
+
+    /**
+     * End of run [k], exclusive.
+     */
+    private fun end(k: Int): Int = runs[k * 2].code + runs[k * 2 + 1].code + 1
+
+    private fun expand(): BitContainer = asBitmap().optimize()
+
+    companion object {
+        /**
+         * All values in `[0, length)`.
+         */
+        fun full(length: Int): RunContainer = RunContainer(charArrayOf(0.toChar(), (length - 1).toChar()), 1)
+    }
+}
@@ -0,0 +1,150 @@
+package ru.ya.vsz.terricon.lang
+
+import ru.ya.vsz.terricon.hash.reduce
+import java.util.function.ToLongFunction
+import kotlin.math.pow
+
+private const val BLOCK_WORDS = 8
+private const val BLOCK_BITS = BLOCK_WORDS * Long.SIZE_BITS
+
+/**
+ * Odd multipliers placing the bits of an element, the first eight are those of Parquet split block filters.
+ */
+private val SALTS = intArrayOf(
+    0x47b6137b, 0x44974d91, 0x8824ad5b.toInt(), 0xa2b7289d.toInt(), 0x705495c7, 0x2df1424b, 0x9efc4947.toInt(), 0x5c6bfb31,
+    0x9e3779b1.toInt(), 0x85ebca77.toInt(), 0xc2b2ae3d.toInt(), 0x27d4eb2f, 0x165667b1, 0xd3a2646d.toInt(), 0xfd7046c5.toInt(), 0xb55a4f09.toInt(),
+)
+
+/**
+ * [BloomFilter] variant that keeps all [hashCount] bits of an element in one 64-byte block:
+ * the high half of the 64-bit [hash] picks the block, the top 9 bits of the low half times a per-hash
+ * odd salt pick the word and the bit in it.
+ * A lookup touches a single cache line instead of [hashCount] random ones, for a somewhat higher
+ * false positive rate than a plain filter of the same size, see [expectedFpp].
+ */
+class BlockedBloomFilter<T>(
+    bitSize: Long,
+    val hashCount: Int,
+    private val hash: ToLongFunction<in T>,
+) : MembershipFilter<T> {
+    private val blockCount: Int
+    private val words: LongArray
+
+    init {
+        require(bitSize > 0) { "Bit size $bitSize is not positive" }
+        require(hashCount in 1..SALTS.size) { "Hash count $hashCount is not in [1, ${SALTS.size}]" }
+        blockCount = Math.toIntExact((bitSize + BLOCK_BITS - 1) / BLOCK_BITS)
+        words = LongArray(Math.multiplyExact(blockCount, BLOCK_WORDS))
+    }
+
+    /**
+     * Size rounded up to whole blocks.
+     */
+    val bitSize: Long
+        get() = blockCount.toLong() * BLOCK_BITS
+
+    /**
+     * Number of set bits.
+     */
+    var bitCount: Long = 0
+        private set
+
+    /**
+     * Adds [element], returns `true` if any bit changed, that is [element] was surely absent before.
+     */
+    fun put(element: T): Boolean {
+        val h = hash.applyAsLong(element)
+        val base = block(h)
+        var changed = false
+        for (w in 0 until BLOCK_WORDS) {
+            val word = words[base + w]
+            val added = mask(h, w) and word.inv()
+            if (added != 0L) {
+                words[base + w] = word or added
+                bitCount += java.lang.Long.bitCount(added)
+                changed = true
+            }
+        }
+        return changed
+    }
+
+    /**
+     * `false` if [element] was never [put], `true` if it probably was.
+     */
+    override fun mightContain(element: T): Boolean {
+        val h = hash.applyAsLong(element)
+        val base = block(h)
+        for (w in 0 until BLOCK_WORDS) {
+            if (mask(h, w) and words[base + w].inv() != 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Probability that [mightContain] is `true` for an element never [put], averaged over blocks
+     * from their share of set bits. Uneven filling of the blocks makes it higher than
+     * [BloomFilter.expectedFpp] at the same overall share.
+     */
+    override fun expectedFpp(): Double {
+        var result = 0.0
+        for (block in 0 until blockCount) {
+            var count = 0
+            for (w in block * BLOCK_WORDS until (block + 1) * BLOCK_WORDS) {
+                count += java.lang.Long.bitCount(words[w])
+            }
+            result += (count.toDouble() / BLOCK_BITS).pow(hashCount)
+        }
+        return result / blockCount
+    }
+
+    override fun sizeInBytes(): Long {
+        return words.size.toLong() * Long.SIZE_BYTES
+    }
+
+    override fun toString(): String {
+        return "BlockedBloomFilter(bitSize=$bitSize, hashCount=$hashCount, bitCount=$bitCount)"
+    }
+
+    /**
+     * First word of the block for hash [h], `[0, blockCount)` taken by multiply-shift from the high half.
+     */
+    private fun block(h: Long): Int {
+        return reduce((h ushr Integer.SIZE).toInt(), blockCount) * BLOCK_WORDS
+    }
+
+    /**
+     * Bits of the element with hash [h] in word [w] of its block, so that [put] and [mightContain]
+     * touch every word once whatever [hashCount] is.
+     */
+    private fun mask(h: Long, w: Int): Long {
+        var result = 0L
+        for (k in 0 until hashCount) {
+            val bit = bit(h, k)
+            if (bit ushr 6 == w) {
+                result = result or (1L shl bit)
+            }
+        }
+        return result
+    }
+
+    /**
+     * Bit `[0, 512)` of the block for hash number [k].
+     */
+    private fun bit(h: Long, k: Int): Int {
+        return h.toInt() * SALTS[k] ushr Integer.SIZE - 9
+    }
+
+    companion object {
+        /**
+         * Filter sized like [BloomFilter.create] for [expectedInsertions] elements at [fpp],
+         * the actual false positive probability comes out somewhat higher.
+         */
+        fun <T> create(expectedInsertions: Long, fpp: Double, hash: ToLongFunction<in T>): BlockedBloomFilter<T> {
+            val bitSize = maxOf(BLOCK_BITS.toLong(), optimalBitSize(expectedInsertions, fpp))
+            val hashCount = optimalHashCount(expectedInsertions, bitSize).coerceAtMost(SALTS.size)
+            return BlockedBloomFilter(bitSize, hashCount, hash)
+        }
+    }
+}
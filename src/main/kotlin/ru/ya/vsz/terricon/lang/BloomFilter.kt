@@ -0,0 +1,270 @@
+package ru.ya.vsz.terricon.lang
+
+import ru.ya.vsz.terricon.hash.fmix64
+import ru.ya.vsz.terricon.hash.reduce
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.*
+import java.util.function.ToLongFunction
+import kotlin.math.ln
+import kotlin.math.pow
+import kotlin.math.roundToInt
+
+/**
+ * Bloom filter over a bitset of [bitSize] bits in `long` words. The [hashCount] bit indexes
+ * of an element are derived from one 64-bit [hash] by double hashing, `h + k * h'`,
+ * with `h'` the hash with its halves swapped.
+ *
+ * [hashId] and [seed] name [hash] for the caller: they are stored by [save] to rebuild it, and filters
+ * with equal [configFingerprint] are taken to share it, so they can be merged by [union] and [intersect].
+ */
+class BloomFilter<T>(
+    val bitSize: Long,
+    val hashCount: Int,
+    private val hash: ToLongFunction<in T>,
+    val hashId: Int = 0,
+    val seed: Long = 0,
+) : MembershipFilter<T> {
+    private val words: LongArray
+
+    init {
+        require(bitSize > 0) { "Bit size $bitSize is not positive" }
+        require(hashCount > 0) { "Hash count $hashCount is not positive" }
+        words = LongArray(Math.toIntExact((bitSize + Long.SIZE_BITS - 1) / Long.SIZE_BITS))
+    }
+
+    /**
+     * Number of set bits.
+     */
+    var bitCount: Long = 0
+        private set
+
+    /**
+     * Number of [put] calls, including those of elements already present, summed by [union]
+     * and the smaller of the two after [intersect].
+     */
+    var insertCount: Long = 0
+        private set
+
+    /**
+     * Adds [element], returns `true` if any bit changed, that is [element] was surely absent before.
+     */
+    fun put(element: T): Boolean {
+        insertCount++
+        var changed = false
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, bitSize) { index ->
+            changed = setBit(index) || changed
+        }
+        return changed
+    }
+
+    /**
+     * `false` if [element] was never [put], `true` if it probably was.
+     */
+    override fun mightContain(element: T): Boolean {
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, bitSize) { index ->
+            if (words[(index ushr 6).toInt()] and (1L shl index.toInt()) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Probability that [mightContain] is `true` for an element never [put], estimated from the share of set bits.
+     */
+    override fun expectedFpp(): Double {
+        return (bitCount.toDouble() / bitSize).pow(hashCount)
+    }
+
+    override fun sizeInBytes(): Long {
+        return words.size.toLong() * Long.SIZE_BYTES
+    }
+
+    /**
+     * Hash of [bitSize], [hashCount], [hashId] and [seed], equal for filters whose bits mean the same.
+     */
+    val configFingerprint: Long
+        get() = fmix64(fmix64(fmix64(bitSize) + hashCount) + hashId) xor fmix64(seed)
+
+    /**
+     * Adds all elements of [other], a filter of the same [configFingerprint], as if they were [put] here:
+     * the bitsets are or-ed word by word.
+     */
+    fun union(other: BloomFilter<T>) {
+        checkCompatible(other)
+        var count = 0L
+        for (w in words.indices) {
+            val word = words[w] or other.words[w]
+            words[w] = word
+            count += java.lang.Long.bitCount(word)
+        }
+        bitCount = count
+        insertCount += other.insertCount
+    }
+
+    /**
+     * Keeps only the bits set in [other] too, a filter of the same [configFingerprint]. Elements of both
+     * filters stay, but so may elements of one whose bits the other has by chance, more than for a filter
+     * built from the intersection.
+     */
+    fun intersect(other: BloomFilter<T>) {
+        checkCompatible(other)
+        var count = 0L
+        for (w in words.indices) {
+            val word = words[w] and other.words[w]
+            words[w] = word
+            count += java.lang.Long.bitCount(word)
+        }
+        bitCount = count
+        insertCount = minOf(insertCount, other.insertCount)
+    }
+
+    /**
+     * Number of distinct elements [put], estimated from the share of set bits as `-m / k ln(1 - X / m)`
+     * (Swamidass, Baldi). Infinite once every bit is set.
+     */
+    fun estimatedCardinality(): Double {
+        return cardinality(bitCount)
+    }
+
+    /**
+     * Jaccard index of the sets of this filter and [other], a filter of the same [configFingerprint]:
+     * `|A ∩ B| / |A ∪ B|`, with the union estimated by [estimatedCardinality] of the or-ed bits
+     * and the intersection as `|A| + |B| - |A ∪ B|`.
+     */
+    fun jaccard(other: BloomFilter<T>): Double {
+        checkCompatible(other)
+        var count = 0L
+        for (w in words.indices) {
+            count += java.lang.Long.bitCount(words[w] or other.words[w])
+        }
+        val union = cardinality(count)
+        if (union == 0.0) {
+            return 1.0
+        }
+        val intersection = estimatedCardinality() + other.estimatedCardinality() - union
+        return (intersection / union).coerceIn(0.0, 1.0)
+    }
+
+    /**
+     * Copy of this filter, to [union] shards into without changing any of them.
+     */
+    fun copy(): BloomFilter<T> {
+        val result = BloomFilter(bitSize, hashCount, hash, hashId, seed)
+        words.copyInto(result.words)
+        result.bitCount = bitCount
+        result.insertCount = insertCount
+        return result
+    }
+
+    private fun cardinality(setBits: Long): Double {
+        return -bitSize.toDouble() / hashCount * ln(1 - setBits.toDouble() / bitSize)
+    }
+
+    private fun checkCompatible(other: BloomFilter<T>) {
+        require(configFingerprint == other.configFingerprint) {
+            "Filters differ in configuration: $this, $other"
+        }
+    }
+
+    override fun toString(): String {
+        return "BloomFilter(bitSize=$bitSize, hashCount=$hashCount, hashId=$hashId, seed=$seed, bitCount=$bitCount)"
+    }
+
+    /**
+     * Writes the Bloom filter file format to [path], so the filter can be [load]ed or [mapReadOnly] back.
+     * [hashId] and [seed] are stored for the reader to rebuild [hash].
+     */
+    fun save(path: Path) {
+        FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING).use { write(it) }
+    }
+
+    /**
+     * Streams the Bloom filter file format of [save] to [channel].
+     */
+    fun write(channel: WritableByteChannel) {
+        writeBloomFilterFile(channel, BloomFilterFileHeader(bitSize, hashCount, hashId, seed, insertCount, bitCount), words)
+    }
+
+    /**
+     * Sets bit [index], returns `true` if it was clear. Also used by filters sharing the indexes of this one.
+     */
+    internal fun setBit(index: Long): Boolean {
+        val word = words[(index ushr 6).toInt()]
+        if (word and (1L shl index.toInt()) != 0L) {
+            return false
+        }
+        words[(index ushr 6).toInt()] = word or (1L shl index.toInt())
+        bitCount++
+        return true
+    }
+
+    companion object {
+        /**
+         * Filter of optimal size for [expectedInsertions] elements at false positive probability [fpp].
+         */
+        fun <T> create(expectedInsertions: Long, fpp: Double, hash: ToLongFunction<in T>): BloomFilter<T> {
+            return create(expectedInsertions, fpp, 0, 0, hash)
+        }
+
+        /**
+         * Filter of optimal size for [expectedInsertions] elements at false positive probability [fpp],
+         * with [hash] named by [hashId] and [seed] for [save] and merges.
+         */
+        fun <T> create(expectedInsertions: Long, fpp: Double, hashId: Int, seed: Long, hash: ToLongFunction<in T>): BloomFilter<T> {
+            val bitSize = maxOf(Long.SIZE_BITS.toLong(), optimalBitSize(expectedInsertions, fpp))
+            return BloomFilter(bitSize, optimalHashCount(expectedInsertions, bitSize), hash, hashId, seed)
+        }
+
+        /**
+         * Heap filter read from a file written by [save]; [hash] gets the hash id and seed of the file
+         * and returns the hash the filter was built with, or throws if it does not know the id.
+         */
+        fun <T> load(path: Path, hash: (hashId: Int, seed: Long) -> ToLongFunction<in T>): BloomFilter<T> {
+            lateinit var result: BloomFilter<T>
+            val header = readBloomFilterFile(path) {
+                result = BloomFilter(it.bitSize, it.hashCount, hash(it.hashId, it.seed), it.hashId, it.seed)
+                result.words
+            }
+            result.insertCount = header.insertCount
+            result.bitCount = header.bitCount
+            return result
+        }
+
+        /**
+         * Read-only filter over a file written by [save], usable without loading it, see [MappedBloomFilter].
+         */
+        fun <T> mapReadOnly(path: Path, hash: (hashId: Int, seed: Long) -> ToLongFunction<in T>): MappedBloomFilter<T> {
+            return MappedBloomFilter.map(path, hash)
+        }
+    }
+}
+
+/**
+ * Bits for [expectedInsertions] elements at false positive probability [fpp], `m = -n ln p / ln² 2`.
+ */
+internal fun optimalBitSize(expectedInsertions: Long, fpp: Double): Long {
+    require(expectedInsertions > 0) { "Expected insertions $expectedInsertions is not positive" }
+    require(fpp > 0 && fpp < 1) { "False positive probability $fpp is not in (0, 1)" }
+    return (-expectedInsertions * ln(fpp) / (ln(2.0) * ln(2.0))).toLong()
+}
+
+/**
+ * Hashes minimizing false positives for [expectedInsertions] elements in [bitSize] bits, `k = m / n ln 2`.
+ */
+internal fun optimalHashCount(expectedInsertions: Long, bitSize: Long): Int {
+    return maxOf(1, (bitSize.toDouble() / expectedInsertions * ln(2.0)).roundToInt())
+}
+
+/**
+ * Calls [action] with the [hashCount] indexes in `[0, size)` derived from hash [h] by double hashing,
+ * each reduced to the range by multiply-shift.
+ */
+internal inline fun forEachBloomIndex(h: Long, hashCount: Int, size: Long, action: (Long) -> Unit) {
+    val step = h.rotateLeft(Integer.SIZE)
+    for (k in 1..hashCount) {
+        action(reduce(h + k * step, size))
+    }
+}
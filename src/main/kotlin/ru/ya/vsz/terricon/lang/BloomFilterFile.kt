@@ -0,0 +1,183 @@
+package ru.ya.vsz.terricon.lang
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.LongBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.READ
+import java.util.function.ToLongFunction
+import kotlin.math.pow
+
+/**
+ * Header of a Bloom filter file. The file is little-endian: a [SIZE]-byte header followed by
+ * the `long` words of the bitset, so it can be mapped and used as is. The hash function itself
+ * is not stored, only [hashId] and [seed] for the reader to rebuild it.
+ */
+internal data class BloomFilterFileHeader(
+    val bitSize: Long,
+    val hashCount: Int,
+    val hashId: Int,
+    val seed: Long,
+    val insertCount: Long,
+    val bitCount: Long,
+) {
+    val words: Long
+        get() = (bitSize + Long.SIZE_BITS - 1) / Long.SIZE_BITS
+
+    fun write(buffer: ByteBuffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(MAGIC)
+            .putInt(VERSION)
+            .putInt(hashCount)
+            .putInt(hashId)
+            .putLong(bitSize)
+            .putLong(seed)
+            .putLong(insertCount)
+            .putLong(bitCount)
+        while (buffer.position() < SIZE) {
+            buffer.put(0)
+        }
+    }
+
+    companion object {
+        const val SIZE = 64
+        const val MAGIC = 0x4D4C4254 // "TBLM"
+        const val VERSION = 1
+
+        fun read(buffer: ByteBuffer): BloomFilterFileHeader {
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+            require(buffer.remaining() >= SIZE && buffer.getInt() == MAGIC) { "Not a Bloom filter file" }
+            val version = buffer.getInt()
+            require(version == VERSION) { "Unsupported Bloom filter file version $version" }
+            val hashCount = buffer.getInt()
+            val hashId = buffer.getInt()
+            val header = BloomFilterFileHeader(buffer.getLong(), hashCount, hashId, buffer.getLong(), buffer.getLong(), buffer.getLong())
+            require(header.bitSize > 0 && header.hashCount > 0) { "Corrupt Bloom filter file header $header" }
+            buffer.position(buffer.position() + SIZE - 4 * Integer.BYTES - 4 * Long.SIZE_BYTES)
+            return header
+        }
+    }
+}
+
+/**
+ * Writes [header] and [words] to [channel], the words through one reused direct buffer.
+ */
+internal fun writeBloomFilterFile(channel: WritableByteChannel, header: BloomFilterFileHeader, words: LongArray) {
+    val buffer = ByteBuffer.allocateDirect(TRANSFER_WORDS * Long.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+    header.write(buffer)
+    writeFully(channel, buffer.flip())
+    var index = 0
+    while (index < words.size) {
+        val length = minOf(TRANSFER_WORDS, words.size - index)
+        buffer.clear()
+        buffer.asLongBuffer().put(words, index, length)
+        buffer.limit(length * Long.SIZE_BYTES)
+        writeFully(channel, buffer)
+        index += length
+    }
+}
+
+/**
+ * Reads a whole Bloom filter file, the words into the array [destination] returns for the header.
+ */
+internal fun readBloomFilterFile(path: Path, destination: (BloomFilterFileHeader) -> LongArray): BloomFilterFileHeader {
+    FileChannel.open(path, READ).use { channel ->
+        val header = readHeader(channel, path)
+        val words = destination(header)
+        check(words.size.toLong() == header.words)
+        val buffer = ByteBuffer.allocateDirect(TRANSFER_WORDS * Long.SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+        var position = BloomFilterFileHeader.SIZE.toLong()
+        var index = 0
+        while (index < words.size) {
+            val length = minOf(TRANSFER_WORDS, words.size - index)
+            buffer.clear().limit(length * Long.SIZE_BYTES)
+            position = readFully(channel, buffer, position, path)
+            buffer.flip().asLongBuffer().get(words, index, length)
+            index += length
+        }
+        return header
+    }
+}
+
+private fun readHeader(channel: FileChannel, path: Path): BloomFilterFileHeader {
+    return readHeader(channel, path, BloomFilterFileHeader.SIZE) { BloomFilterFileHeader.read(it) }
+}
+
+/**
+ * Read-only [BloomFilter] over a file written by [BloomFilter.save], mapped in chunks of up to 1 GiB:
+ * nothing is loaded up front, pages are read on first access, and processes mapping the same file
+ * share one copy in the page cache. Answers exactly as the saved filter did.
+ */
+class MappedBloomFilter<T> private constructor(
+    private val header: BloomFilterFileHeader,
+    private val hash: ToLongFunction<in T>,
+    private val chunks: Array<LongBuffer>,
+) : MembershipFilter<T> {
+    val bitSize: Long
+        get() = header.bitSize
+
+    val hashCount: Int
+        get() = header.hashCount
+
+    val hashId: Int
+        get() = header.hashId
+
+    val seed: Long
+        get() = header.seed
+
+    /**
+     * Number of elements [BloomFilter.put] before saving.
+     */
+    val insertCount: Long
+        get() = header.insertCount
+
+    val bitCount: Long
+        get() = header.bitCount
+
+    override fun mightContain(element: T): Boolean {
+        forEachBloomIndex(hash.applyAsLong(element), header.hashCount, header.bitSize) { index ->
+            val word = index ushr 6
+            if (chunks[(word ushr CHUNK_SHIFT).toInt()][(word and CHUNK_MASK).toInt()] and (1L shl index.toInt()) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Probability that [mightContain] is `true` for an element never put, from the share of set bits saved in the header.
+     */
+    override fun expectedFpp(): Double {
+        return (header.bitCount.toDouble() / header.bitSize).pow(header.hashCount)
+    }
+
+    override fun sizeInBytes(): Long {
+        return header.words * Long.SIZE_BYTES
+    }
+
+    override fun toString(): String {
+        return "MappedBloomFilter(bitSize=$bitSize, hashCount=$hashCount, hashId=$hashId, insertCount=$insertCount)"
+    }
+
+    companion object {
+        private const val CHUNK_SHIFT = 27
+        private const val CHUNK_MASK = (1L shl CHUNK_SHIFT) - 1
+
+        internal fun <T> map(path: Path, hash: (hashId: Int, seed: Long) -> ToLongFunction<in T>): MappedBloomFilter<T> {
+            FileChannel.open(path, READ).use { channel ->
+                val header = readHeader(channel, path)
+                require(channel.size() >= BloomFilterFileHeader.SIZE + header.words * Long.SIZE_BYTES) {
+                    "Bloom filter file $path is truncated"
+                }
+                val mappings = mapChunks(
+                    channel, MapMode.READ_ONLY, BloomFilterFileHeader.SIZE.toLong(), header.words, Long.SIZE_BYTES, CHUNK_SHIFT,
+                )
+                val chunks = Array(mappings.size) { mappings[it].asLongBuffer() }
+                return MappedBloomFilter(header, hash(header.hashId, header.seed), chunks)
+            }
+        }
+    }
+}
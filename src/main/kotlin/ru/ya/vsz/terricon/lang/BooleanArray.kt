@@ -1,7 +1,12 @@
 package ru.ya.vsz.terricon.lang
 
+import java.util.PrimitiveIterator
+import java.util.function.IntConsumer
+
 class BooleanArray(size: Int) {
     private val store: BooleanMatrix
+    @Volatile
+    private var rankIndex: RankSelectIndex? = null
 
     init {
         store = BooleanMatrix(size, 1)
@@ -13,15 +18,84 @@ class BooleanArray(size: Int) {
 
     operator fun set(i: Int, value: Boolean) {
         store[i, 0] = value
+        rankIndex = null
+    }
+
+    /**
+     * Atomic [set], returns the previous value. The rank directory is dropped after the change, so
+     * [rank1] and [select1] see it once this returns, but are not exact while writers are running.
+     */
+    fun setAtomic(i: Int, value: Boolean): Boolean {
+        val previous = store.setAtomic(i, 0, value)
+        rankIndex = null
+        return previous
     }
 
     fun fill(value: Boolean) {
         store.fill(value)
+        rankIndex = null
     }
 
     val size: Int
         get() = store.width
 
+    /**
+     * First set index at or after [i], or `-1` if there is none.
+     */
+    fun nextSetBit(i: Int): Int {
+        return unpackFirstInt(store.nextSetBit(i, 0))
+    }
+
+    /**
+     * First clear index at or after [i], or `-1` if there is none.
+     */
+    fun nextClearBit(i: Int): Int {
+        return unpackFirstInt(store.nextClearBit(i, 0))
+    }
+
+    fun forEachSetBit(action: IntConsumer) {
+        store.forEachSetBit { i, _ -> action.accept(i) }
+    }
+
+    fun setBits(): PrimitiveIterator.OfInt = object : PrimitiveIterator.OfInt {
+        private val delegate = store.setBits()
+
+        override fun hasNext(): Boolean = delegate.hasNext()
+
+        override fun nextInt(): Int = unpackFirstInt(delegate.nextLong())
+
+        override fun remove() {
+            throw UnsupportedOperationException()
+        }
+    }
+
+    fun cardinality(): Long {
+        return rankIndex().cardinality
+    }
+
+    /**
+     * Number of set bits before index [i], `0 <= i <= size`. Constant time once the rank directory
+     * is built, which happens on the first call after a change.
+     */
+    fun rank1(i: Int): Long {
+        if (i < 0 || i > size) {
+            throw IndexOutOfBoundsException()
+        }
+        return rankIndex().rank(i)
+    }
+
+    /**
+     * Index of the set bit with [k] set bits before it, or `-1` if there are not that many.
+     * Logarithmic time once the rank directory is built.
+     */
+    fun select1(k: Long): Int {
+        return rankIndex().select(k)
+    }
+
+    private fun rankIndex(): RankSelectIndex {
+        return rankIndex ?: RankSelectIndex(store).also { rankIndex = it }
+    }
+
     override fun toString(): String {
         return store.toString()
     }
@@ -1,15 +1,21 @@
 package ru.ya.vsz.terricon.lang
 
-class BooleanMatrix(val width: Int, val height: Int) {
-    private val store: IntMatrix
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.*
+import java.util.PrimitiveIterator
 
-    init {
-        var intWidth = width / Integer.SIZE
-        if (width % Integer.SIZE > 0) {
-            intWidth++
-        }
-        store = IntMatrix(intWidth, height)
-    }
+/**
+ * Bit matrix packed into the rows of an [IntMatrix], [Integer.SIZE] cells per word.
+ * Padding bits past [width] in the last word of every row are always kept clear,
+ * so bulk operations may work on whole words.
+ */
+class BooleanMatrix private constructor(val width: Int, val height: Int, private val store: IntMatrix) {
+    private val wordsPerRow: Int = store.width
+    private val lastWordMask: Int = if (width % Integer.SIZE > 0) (1 shl width % Integer.SIZE) - 1 else 0.inv()
+
+    constructor(width: Int, height: Int) : this(width, height, IntMatrix(wordsPerRow(width), height))
 
     operator fun get(i: Int, j: Int): Boolean {
         if (i < 0 || j < 0 || i >= width || j >= height) {
@@ -19,6 +25,9 @@ class BooleanMatrix(val width: Int, val height: Int) {
     }
 
     operator fun set(i: Int, j: Int, value: Boolean) {
+        if (i < 0 || j < 0 || i >= width || j >= height) {
+            throw IndexOutOfBoundsException()
+        }
         val batchIndex = i / Integer.SIZE
         var batch = store[batchIndex, j]
         batch = if (value) {
@@ -29,14 +38,296 @@ class BooleanMatrix(val width: Int, val height: Int) {
         store[batchIndex, j] = batch
     }
 
+    /**
+     * Atomic [set]: concurrent calls never lose updates of other cells sharing the same word.
+     * Returns the previous value of the cell.
+     */
+    fun setAtomic(i: Int, j: Int, value: Boolean): Boolean {
+        if (i < 0 || j < 0 || i >= width || j >= height) {
+            throw IndexOutOfBoundsException()
+        }
+        val index = i / Integer.SIZE + j.toLong() * wordsPerRow
+        val mask = 1 shl i % Integer.SIZE
+        val batch = if (value) {
+            store.getAndBitwiseOr(index, mask)
+        } else {
+            store.getAndBitwiseAnd(index, mask.inv())
+        }
+        return batch and mask != 0
+    }
+
     fun fill(value: Boolean) {
         if (value) {
             store.fill(0.inv())
+            clearPadding(0, height)
         } else {
             store.fill(0)
         }
     }
 
+    /**
+     * `this = this & other` on rows `[fromRow, toRow)`.
+     */
+    fun and(other: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        and(other, this, fromRow, toRow)
+
+    /**
+     * `target = this & other` on rows `[fromRow, toRow)`, other rows of [target] are left untouched.
+     */
+    fun and(other: BooleanMatrix, target: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        combine(other, target, fromRow, toRow) { a, b -> a and b }
+
+    /**
+     * `this = this | other` on rows `[fromRow, toRow)`.
+     */
+    fun or(other: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        or(other, this, fromRow, toRow)
+
+    /**
+     * `target = this | other` on rows `[fromRow, toRow)`, other rows of [target] are left untouched.
+     */
+    fun or(other: BooleanMatrix, target: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        combine(other, target, fromRow, toRow) { a, b -> a or b }
+
+    /**
+     * `this = this | other` on rows `[fromRow, toRow)` with atomic word updates, so several threads may merge
+     * into the same matrix at once, alongside [setAtomic]. Zero words of [other] are not written.
+     */
+    fun orFrom(other: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix {
+        checkSameSize(other)
+        checkRows(fromRow, toRow)
+        for (index in fromRow.toLong() * wordsPerRow until toRow.toLong() * wordsPerRow) {
+            val word = other.store[index]
+            if (word != 0) {
+                store.getAndBitwiseOr(index, word)
+            }
+        }
+        return this
+    }
+
+    /**
+     * `this = this ^ other` on rows `[fromRow, toRow)`.
+     */
+    fun xor(other: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        xor(other, this, fromRow, toRow)
+
+    /**
+     * `target = this ^ other` on rows `[fromRow, toRow)`, other rows of [target] are left untouched.
+     */
+    fun xor(other: BooleanMatrix, target: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        combine(other, target, fromRow, toRow) { a, b -> a xor b }
+
+    /**
+     * `this = this & !other` on rows `[fromRow, toRow)`.
+     */
+    fun andNot(other: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        andNot(other, this, fromRow, toRow)
+
+    /**
+     * `target = this & !other` on rows `[fromRow, toRow)`, other rows of [target] are left untouched.
+     */
+    fun andNot(other: BooleanMatrix, target: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        combine(other, target, fromRow, toRow) { a, b -> a and b.inv() }
+
+    /**
+     * `this = this & other`, chunks not stored in [other] are cleared.
+     */
+    fun and(other: CompressedBooleanMatrix): BooleanMatrix =
+        other.applyTo(this, clearMissing = true) { a, b -> a and b }
+
+    /**
+     * `this = this | other`, only words of the chunks stored in [other] are touched.
+     */
+    fun or(other: CompressedBooleanMatrix): BooleanMatrix =
+        other.applyTo(this, clearMissing = false) { a, b -> a or b }
+
+    /**
+     * `this = this ^ other`, only words of the chunks stored in [other] are touched.
+     */
+    fun xor(other: CompressedBooleanMatrix): BooleanMatrix =
+        other.applyTo(this, clearMissing = false) { a, b -> a xor b }
+
+    /**
+     * `this = this & !other`, only words of the chunks stored in [other] are touched.
+     */
+    fun andNot(other: CompressedBooleanMatrix): BooleanMatrix =
+        other.applyTo(this, clearMissing = false) { a, b -> a and b.inv() }
+
+    /**
+     * `this = !this` on rows `[fromRow, toRow)`.
+     */
+    fun not(fromRow: Int = 0, toRow: Int = height): BooleanMatrix =
+        not(this, fromRow, toRow)
+
+    /**
+     * `target = !this` on rows `[fromRow, toRow)`, other rows of [target] are left untouched.
+     */
+    fun not(target: BooleanMatrix, fromRow: Int = 0, toRow: Int = height): BooleanMatrix {
+        checkSameSize(target)
+        checkRows(fromRow, toRow)
+        for (index in fromRow.toLong() * wordsPerRow until toRow.toLong() * wordsPerRow) {
+            target.store[index] = store[index].inv()
+        }
+        target.clearPadding(fromRow, toRow)
+        return target
+    }
+
+    /**
+     * Number of set cells in rows `[fromRow, toRow)`.
+     */
+    fun cardinality(fromRow: Int = 0, toRow: Int = height): Long {
+        checkRows(fromRow, toRow)
+        var result = 0L
+        for (index in fromRow.toLong() * wordsPerRow until toRow.toLong() * wordsPerRow) {
+            result += Integer.bitCount(store[index])
+        }
+        return result
+    }
+
+    /**
+     * Compares rows `[fromRow, toRow)` of two matrices of the same size.
+     */
+    fun equals(other: BooleanMatrix, fromRow: Int, toRow: Int): Boolean {
+        checkSameSize(other)
+        checkRows(fromRow, toRow)
+        for (index in fromRow.toLong() * wordsPerRow until toRow.toLong() * wordsPerRow) {
+            if (store[index] != other.store[index]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * First set cell at or after `(i, j)` in row-major order, packed with [packInts] as `(i, j)`,
+     * or `-1` if there is none. Zero words are skipped whole.
+     */
+    fun nextSetBit(i: Int, j: Int): Long {
+        var index = startIndex(i, j)
+        val end = height.toLong() * wordsPerRow
+        if (index >= end) {
+            return -1
+        }
+        var word = if (i < width) store[index] and (0.inv() shl i % Integer.SIZE) else store[index]
+        while (true) {
+            if (word != 0) {
+                return packInts((index % wordsPerRow).toInt() * Integer.SIZE + Integer.numberOfTrailingZeros(word), (index / wordsPerRow).toInt())
+            }
+            if (++index == end) {
+                return -1
+            }
+            word = store[index]
+        }
+    }
+
+    /**
+     * First clear cell at or after `(i, j)` in row-major order, packed with [packInts] as `(i, j)`,
+     * or `-1` if there is none. Full words are skipped whole.
+     */
+    fun nextClearBit(i: Int, j: Int): Long {
+        var index = startIndex(i, j)
+        val end = height.toLong() * wordsPerRow
+        if (index >= end) {
+            return -1
+        }
+        var word = if (i < width) store[index].inv() and (0.inv() shl i % Integer.SIZE) else store[index].inv()
+        while (true) {
+            if (index % wordsPerRow == wordsPerRow - 1L) {
+                word = word and lastWordMask
+            }
+            if (word != 0) {
+                return packInts((index % wordsPerRow).toInt() * Integer.SIZE + Integer.numberOfTrailingZeros(word), (index / wordsPerRow).toInt())
+            }
+            if (++index == end) {
+                return -1
+            }
+            word = store[index].inv()
+        }
+    }
+
+    /**
+     * Calls [action] for every set cell in row-major order, in time proportional to
+     * the number of set cells plus the number of words.
+     */
+    fun forEachSetBit(action: CellConsumer) {
+        var index = 0L
+        for (j in 0 until height) {
+            for (batchIndex in 0 until wordsPerRow) {
+                var word = store[index++]
+                while (word != 0) {
+                    action.accept(batchIndex * Integer.SIZE + Integer.numberOfTrailingZeros(word), j)
+                    word = word and word - 1
+                }
+            }
+        }
+    }
+
+    /**
+     * Set cells in row-major order, each packed with [packInts] as `(i, j)`.
+     */
+    fun setBits(): PrimitiveIterator.OfLong = object : PrimitiveIterator.OfLong {
+        private var next = nextSetBit(0, 0)
+
+        override fun hasNext(): Boolean = next != -1L
+
+        override fun nextLong(): Long {
+            val result = next
+            if (result == -1L) {
+                throw NoSuchElementException()
+            }
+            next = nextSetBit(unpackFirstInt(result) + 1, unpackSecondInt(result))
+            return result
+        }
+
+        override fun remove() {
+            throw UnsupportedOperationException()
+        }
+    }
+
+    /**
+     * Writes changes of a file-backed matrix through to the file, does nothing for a heap one.
+     */
+    fun force() {
+        store.force()
+    }
+
+    /**
+     * Writes the matrix file format of [map] to [path], so it can be [load]ed or mapped back.
+     */
+    fun save(path: Path) {
+        FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING).use { write(it) }
+    }
+
+    /**
+     * Streams the matrix file format of [map] to [channel].
+     */
+    fun write(channel: WritableByteChannel) {
+        store.write(channel, MatrixFileHeader(1, width, height))
+    }
+
+    /**
+     * Overwrites rows `[fromRow, toRow)` of a file previously written by [save] for a matrix of the same size.
+     */
+    fun saveRows(path: Path, fromRow: Int, toRow: Int) {
+        checkRows(fromRow, toRow)
+        store.saveRows(path, MatrixFileHeader(1, width, height), fromRow, toRow)
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is BooleanMatrix) return false
+        if (width != other.width || height != other.height) return false
+        return equals(other, 0, height)
+    }
+
+    override fun hashCode(): Int {
+        var result = 31 * width + height
+        for (index in 0 until height.toLong() * wordsPerRow) {
+            result = 31 * result + store[index]
+        }
+        return result
+    }
+
     override fun toString(): String {
         val result = StringBuilder()
         for (j in 0 until height) {
@@ -48,6 +339,106 @@ class BooleanMatrix(val width: Int, val height: Int) {
         }
         return result.toString()
     }
+
+    companion object {
+        /**
+         * Matrix backed by a memory-mapped file at [path], created zero-filled if absent.
+         */
+        fun map(path: Path, width: Int, height: Int): BooleanMatrix {
+            val header = MatrixFileHeader(1, width, height)
+            return BooleanMatrix(width, height, IntMatrix(header.wordsPerRow, height, MappedIntStore.map(path, header)))
+        }
+
+        /**
+         * Heap matrix read from a file written by [save] or [map].
+         */
+        fun load(path: Path): BooleanMatrix {
+            val (header, store) = readMatrixFile(path, 1)
+            return BooleanMatrix(header.width, header.height, IntMatrix(header.wordsPerRow, header.height, store))
+        }
+
+        /**
+         * Read-only matrix over a file written by [save] or [map], usable without loading it.
+         */
+        fun mapReadOnly(path: Path): BooleanMatrix {
+            val (header, store) = MappedIntStore.mapReadOnly(path, 1)
+            return BooleanMatrix(header.width, header.height, IntMatrix(header.wordsPerRow, header.height, store))
+        }
+    }
+
+    private inline fun combine(
+        other: BooleanMatrix,
+        target: BooleanMatrix,
+        fromRow: Int,
+        toRow: Int,
+        operation: (Int, Int) -> Int,
+    ): BooleanMatrix {
+        checkSameSize(other)
+        checkSameSize(target)
+        checkRows(fromRow, toRow)
+        for (index in fromRow.toLong() * wordsPerRow until toRow.toLong() * wordsPerRow) {
+            target.store[index] = operation(store[index], other.store[index])
+        }
+        return target
+    }
+
+    /**
+     * Word [batchIndex] of row [j], bit `k` of it is the cell `(batchIndex * 32 + k, j)`.
+     */
+    internal fun getWord(batchIndex: Int, j: Int): Int {
+        return store[batchIndex, j]
+    }
+
+    /**
+     * Replaces word [batchIndex] of row [j], the caller keeps padding bits clear.
+     */
+    internal fun setWord(batchIndex: Int, j: Int, word: Int) {
+        store[batchIndex, j] = word
+    }
+
+    private fun startIndex(i: Int, j: Int): Long {
+        if (i < 0 || j < 0) {
+            throw IndexOutOfBoundsException()
+        }
+        if (i >= width) {
+            return (j + 1L) * wordsPerRow
+        }
+        return i / Integer.SIZE + j.toLong() * wordsPerRow
+    }
+
+    private fun clearPadding(fromRow: Int, toRow: Int) {
+        if (wordsPerRow == 0) {
+            return
+        }
+        for (j in fromRow until toRow) {
+            val index = wordsPerRow - 1 + j.toLong() * wordsPerRow
+            store[index] = store[index] and lastWordMask
+        }
+    }
+
+    private fun checkSameSize(other: BooleanMatrix) {
+        require(width == other.width && height == other.height) {
+            "Matrix ${other.width}x${other.height} does not match ${width}x$height"
+        }
+    }
+
+    private fun checkRows(fromRow: Int, toRow: Int) {
+        if (fromRow < 0 || toRow > height || fromRow > toRow) {
+            throw IndexOutOfBoundsException("Rows [$fromRow, $toRow) out of [0, $height)")
+        }
+    }
+}
+
+private fun wordsPerRow(width: Int): Int {
+    var intWidth = width / Integer.SIZE
+    if (width % Integer.SIZE > 0) {
+        intWidth++
+    }
+    return intWidth
+}
+
+fun interface CellConsumer {
+    fun accept(i: Int, j: Int)
 }
 
 private fun getBit(data: Int, index: Int): Boolean {
@@ -60,4 +451,4 @@ private fun setBit(data: Int, index: Int): Int {
 
 private fun unsetBit(data: Int, index: Int): Int {
     return data and (1 shl index).inv()
-}
\ No newline at end of file
+}
@@ -0,0 +1,314 @@
+package ru.ya.vsz.terricon.lang
+
+import java.util.*
+import java.util.function.IntBinaryOperator
+
+/**
+ * [BooleanMatrix] for sparse or run-shaped masks. Every row is cut into chunks of 65536 cells,
+ * only non-empty chunks are stored, each in the cheapest [BitContainer]. Chunks line up with
+ * the words of a dense row, so bulk operations with a [BooleanMatrix] work chunk by chunk.
+ */
+class CompressedBooleanMatrix(val width: Int, val height: Int) {
+    private val chunksPerRow: Int = ((width.toLong() + CHUNK_SIZE - 1) ushr CHUNK_BITS).toInt()
+    private val wordsPerRow: Int = ((width.toLong() + Integer.SIZE - 1) / Integer.SIZE).toInt()
+    private var keys = LongArray(4)
+    private var containers = arrayOfNulls<BitContainer>(4)
+    private var size = 0
+
+    operator fun get(i: Int, j: Int): Boolean {
+        if (i < 0 || j < 0 || i >= width || j >= height) {
+            throw IndexOutOfBoundsException()
+        }
+        val position = find(key(i ushr CHUNK_BITS, j))
+        return position >= 0 && (i and CHUNK_SIZE - 1) in containers[position]!!
+    }
+
+    operator fun set(i: Int, j: Int, value: Boolean) {
+        if (i < 0 || j < 0 || i >= width || j >= height) {
+            throw IndexOutOfBoundsException()
+        }
+        val key = key(i ushr CHUNK_BITS, j)
+        val position = find(key)
+        if (value) {
+            if (position >= 0) {
+                containers[position] = containers[position]!!.add(i and CHUNK_SIZE - 1)
+            } else {
+                insert(-position - 1, key, ArrayContainer().add(i and CHUNK_SIZE - 1))
+            }
+        } else if (position >= 0) {
+            val container = containers[position]!!.remove(i and CHUNK_SIZE - 1)
+            if (container.cardinality == 0) {
+                delete(position)
+            } else {
+                containers[position] = container
+            }
+        }
+    }
+
+    fun fill(value: Boolean) {
+        if (!value) {
+            replace(LongArray(4), arrayOfNulls(4), 0)
+            return
+        }
+        val count = Math.multiplyExact(chunksPerRow, height)
+        val newKeys = LongArray(count)
+        val newContainers = arrayOfNulls<BitContainer>(count)
+        for (k in 0 until count) {
+            newKeys[k] = k.toLong()
+            newContainers[k] = RunContainer.full(chunkWidth(k % chunksPerRow))
+        }
+        replace(newKeys, newContainers, count)
+    }
+
+    fun cardinality(): Long {
+        var result = 0L
+        for (k in 0 until size) {
+            result += containers[k]!!.cardinality
+        }
+        return result
+    }
+
+    /**
+     * Memory taken by the stored chunks.
+     */
+    fun sizeInBytes(): Long {
+        var result = size.toLong() * (Long.SIZE_BYTES + Int.SIZE_BYTES)
+        for (k in 0 until size) {
+            result += containers[k]!!.sizeInBytes()
+        }
+        return result
+    }
+
+    /**
+     * Converts chunks to runs of consecutive cells where those are smaller.
+     */
+    fun runOptimize(): CompressedBooleanMatrix {
+        for (k in 0 until size) {
+            containers[k] = containers[k]!!.runOptimize()
+        }
+        return this
+    }
+
+    /**
+     * `this = this & other`.
+     */
+    fun and(other: CompressedBooleanMatrix): CompressedBooleanMatrix =
+        merge(other, keepOwn = false, keepOther = false) { a, b -> a.and(b) }
+
+    /**
+     * `this = this | other`.
+     */
+    fun or(other: CompressedBooleanMatrix): CompressedBooleanMatrix =
+        merge(other, keepOwn = true, keepOther = true) { a, b -> a.or(b) }
+
+    /**
+     * `this = this ^ other`.
+     */
+    fun xor(other: CompressedBooleanMatrix): CompressedBooleanMatrix =
+        merge(other, keepOwn = true, keepOther = true) { a, b -> a.xor(b) }
+
+    /**
+     * `this = this & !other`.
+     */
+    fun andNot(other: CompressedBooleanMatrix): CompressedBooleanMatrix =
+        merge(other, keepOwn = true, keepOther = false) { a, b -> a.andNot(b) }
+
+    /**
+     * `this = this & other`, only chunks stored here are read from [other].
+     */
+    fun and(other: BooleanMatrix): CompressedBooleanMatrix =
+        mergeDense(other, allChunks = false) { a, b -> if (b == null) null else a!!.and(b) }
+
+    /**
+     * `this = this | other`, reads the whole [other].
+     */
+    fun or(other: BooleanMatrix): CompressedBooleanMatrix =
+        mergeDense(other, allChunks = true) { a, b -> if (a == null) b else if (b == null) a else a.or(b) }
+
+    /**
+     * `this = this ^ other`, reads the whole [other].
+     */
+    fun xor(other: BooleanMatrix): CompressedBooleanMatrix =
+        mergeDense(other, allChunks = true) { a, b -> if (a == null) b else if (b == null) a else a.xor(b) }
+
+    /**
+     * `this = this & !other`, only chunks stored here are read from [other].
+     */
+    fun andNot(other: BooleanMatrix): CompressedBooleanMatrix =
+        mergeDense(other, allChunks = false) { a, b -> if (b == null) a else a!!.andNot(b) }
+
+    fun forEachSetBit(action: CellConsumer) {
+        for (k in 0 until size) {
+            val offset = (keys[k] % chunksPerRow).toInt() shl CHUNK_BITS
+            val j = (keys[k] / chunksPerRow).toInt()
+            containers[k]!!.forEach { action.accept(offset + it, j) }
+        }
+    }
+
+    fun toBooleanMatrix(): BooleanMatrix {
+        val result = BooleanMatrix(width, height)
+        for (k in 0 until size) {
+            val firstWord = (keys[k] % chunksPerRow).toInt() * CHUNK_WORDS
+            val j = (keys[k] / chunksPerRow).toInt()
+            containers[k]!!.forEachWord { w, word -> result.setWord(firstWord + w, j, word) }
+        }
+        return result
+    }
+
+    /**
+     * `target = target <operation> this` on the words of the stored chunks. With [clearMissing] the other
+     * words of [target] are cleared too, as an operation with an empty chunk would.
+     */
+    internal fun applyTo(target: BooleanMatrix, clearMissing: Boolean, operation: IntBinaryOperator): BooleanMatrix {
+        require(width == target.width && height == target.height) {
+            "Matrix ${target.width}x${target.height} does not match ${width}x$height"
+        }
+        if (!clearMissing) {
+            for (k in 0 until size) {
+                val firstWord = (keys[k] % chunksPerRow).toInt() * CHUNK_WORDS
+                val j = (keys[k] / chunksPerRow).toInt()
+                containers[k]!!.forEachWord { w, word ->
+                    target.setWord(firstWord + w, j, operation.applyAsInt(target.getWord(firstWord + w, j), word))
+                }
+            }
+            return target
+        }
+        var k = 0
+        for (key in 0 until chunksPerRow.toLong() * height) {
+            val firstWord = (key % chunksPerRow).toInt() * CHUNK_WORDS
+            val j = (key / chunksPerRow).toInt()
+            var next = 0
+            if (k < size && keys[k] == key) {
+                containers[k++]!!.forEachWord { w, word ->
+                    for (gap in next until w) {
+                        target.setWord(firstWord + gap, j, 0)
+                    }
+                    target.setWord(firstWord + w, j, operation.applyAsInt(target.getWord(firstWord + w, j), word))
+                    next = w + 1
+                }
+            }
+            for (gap in next until minOf(CHUNK_WORDS, wordsPerRow - firstWord)) {
+                target.setWord(firstWord + gap, j, 0)
+            }
+        }
+        return target
+    }
+
+    override fun toString(): String {
+        return toBooleanMatrix().toString()
+    }
+
+    private inline fun merge(
+        other: CompressedBooleanMatrix,
+        keepOwn: Boolean,
+        keepOther: Boolean,
+        operation: (BitContainer, BitContainer) -> BitContainer,
+    ): CompressedBooleanMatrix {
+        require(width == other.width && height == other.height) {
+            "Matrix ${other.width}x${other.height} does not match ${width}x$height"
+        }
+        val newKeys = LongArray(size + other.size)
+        val newContainers = arrayOfNulls<BitContainer>(size + other.size)
+        var count = 0
+        var a = 0
+        var b = 0
+        while (a < size || b < other.size) {
+            val ownKey = if (a < size) keys[a] else Long.MAX_VALUE
+            val otherKey = if (b < other.size) other.keys[b] else Long.MAX_VALUE
+            val container = when {
+                ownKey < otherKey -> if (keepOwn) containers[a] else null
+                ownKey > otherKey -> if (keepOther) other.containers[b]!!.copy() else null
+                else -> operation(containers[a]!!, other.containers[b]!!)
+            }
+            if (container != null && container.cardinality > 0) {
+                newKeys[count] = minOf(ownKey, otherKey)
+                newContainers[count++] = container
+            }
+            if (ownKey <= otherKey) a++
+            if (otherKey <= ownKey) b++
+        }
+        replace(newKeys, newContainers, count)
+        return this
+    }
+
+    private inline fun mergeDense(
+        other: BooleanMatrix,
+        allChunks: Boolean,
+        operation: (BitContainer?, BitContainer?) -> BitContainer?,
+    ): CompressedBooleanMatrix {
+        require(width == other.width && height == other.height) {
+            "Matrix ${other.width}x${other.height} does not match ${width}x$height"
+        }
+        val capacity = if (allChunks) Math.multiplyExact(chunksPerRow, height) else size
+        val newKeys = LongArray(capacity)
+        val newContainers = arrayOfNulls<BitContainer>(capacity)
+        var count = 0
+        var own = 0
+        val chunkCount = if (allChunks) chunksPerRow.toLong() * height else size.toLong()
+        for (n in 0 until chunkCount) {
+            val key = if (allChunks) n else keys[n.toInt()]
+            val ownContainer = if (own < size && keys[own] == key) containers[own++] else null
+            val container = operation(ownContainer, denseChunk(other, key))
+            if (container != null && container.cardinality > 0) {
+                newKeys[count] = key
+                newContainers[count++] = container
+            }
+        }
+        replace(newKeys, newContainers, count)
+        return this
+    }
+
+    private fun denseChunk(matrix: BooleanMatrix, key: Long): BitContainer? {
+        val firstWord = (key % chunksPerRow).toInt() * CHUNK_WORDS
+        val j = (key / chunksPerRow).toInt()
+        val words = IntArray(CHUNK_WORDS)
+        var empty = true
+        for (w in 0 until minOf(CHUNK_WORDS, wordsPerRow - firstWord)) {
+            words[w] = matrix.getWord(firstWord + w, j)
+            empty = empty && words[w] == 0
+        }
+        return if (empty) null else BitmapContainer(words).optimize()
+    }
+
+    private fun chunkWidth(chunk: Int): Int {
+        return minOf(CHUNK_SIZE, width - (chunk shl CHUNK_BITS))
+    }
+
+    private fun key(chunk: Int, j: Int): Long {
+        return j.toLong() * chunksPerRow + chunk
+    }
+
+    private fun find(key: Long): Int {
+        return Arrays.binarySearch(keys, 0, size, key)
+    }
+
+    private fun insert(position: Int, key: Long, container: BitContainer) {
+        if (size == keys.size) {
+            keys = keys.copyOf(size * 2)
+            containers = containers.copyOf(size * 2)
+        }
+        System.arraycopy(keys, position, keys, position + 1, size - position)
+        System.arraycopy(containers, position, containers, position + 1, size - position)
+        keys[position] = key
+        containers[position] = container
+        size++
+    }
+
+    private fun delete(position: Int) {
+        System.arraycopy(keys, position + 1, keys, position, size - position - 1)
+        System.arraycopy(containers, position + 1, containers, position, size - position - 1)
+        containers[--size] = null
+    }
+
+    private fun replace(newKeys: LongArray, newContainers: Array<BitContainer?>, count: Int) {
+        keys = if (newKeys.isEmpty()) LongArray(4) else newKeys
+        containers = if (newContainers.isEmpty()) arrayOfNulls(4) else newContainers
+        size = count
+    }
+
+    companion object {
+        fun of(matrix: BooleanMatrix): CompressedBooleanMatrix {
+            return CompressedBooleanMatrix(matrix.width, matrix.height).or(matrix).runOptimize()
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.ya.vsz.terricon.lang
+
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.VarHandle
+import java.util.Spliterator
+import java.util.function.ToLongFunction
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+import kotlin.math.pow
+
+/**
+ * [BloomFilter] safe for concurrent use: [put] sets bits with an atomic OR, so no insert is lost,
+ * and [mightContain] only reads, without locks. Uses the same indexes as a [BloomFilter]
+ * of the same [bitSize], [hashCount] and [hash], see [toBloomFilter].
+ */
+class ConcurrentBloomFilter<T>(
+    val bitSize: Long,
+    val hashCount: Int,
+    private val hash: ToLongFunction<in T>,
+) : MembershipFilter<T> {
+    private val words: LongArray
+
+    init {
+        require(bitSize > 0) { "Bit size $bitSize is not positive" }
+        require(hashCount > 0) { "Hash count $hashCount is not positive" }
+        words = LongArray(Math.toIntExact((bitSize + Long.SIZE_BITS - 1) / Long.SIZE_BITS))
+    }
+
+    /**
+     * Adds [element], returns `true` if this call set any bit. Of concurrent calls for the same absent
+     * element at least one returns `true`.
+     */
+    fun put(element: T): Boolean {
+        var changed = false
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, bitSize) { index ->
+            val mask = 1L shl index.toInt()
+            if (WORDS.getOpaque(words, (index ushr 6).toInt()) as Long and mask == 0L) {
+                changed = WORDS.getAndBitwiseOr(words, (index ushr 6).toInt(), mask) as Long and mask == 0L || changed
+            }
+        }
+        return changed
+    }
+
+    /**
+     * Adds all elements of [elements] in parallel on the common fork-join pool.
+     */
+    fun putAll(elements: Stream<out T>) {
+        elements.parallel().forEach { put(it) }
+    }
+
+    /**
+     * Adds all elements of [elements] in parallel on the common fork-join pool, splitting it as it allows.
+     */
+    fun putAll(elements: Spliterator<out T>) {
+        putAll(StreamSupport.stream(elements, true))
+    }
+
+    /**
+     * `false` if [element] was never [put], `true` if it probably was. Sees every [put] that completed before.
+     */
+    override fun mightContain(element: T): Boolean {
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, bitSize) { index ->
+            if (WORDS.getAcquire(words, (index ushr 6).toInt()) as Long and (1L shl index.toInt()) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Number of set bits, counted on every read.
+     */
+    val bitCount: Long
+        get() {
+            var result = 0L
+            for (w in words.indices) {
+                result += java.lang.Long.bitCount(WORDS.getOpaque(words, w) as Long)
+            }
+            return result
+        }
+
+    /**
+     * Probability that [mightContain] is `true` for an element never [put], estimated from the share of set bits.
+     */
+    override fun expectedFpp(): Double {
+        return (bitCount.toDouble() / bitSize).pow(hashCount)
+    }
+
+    override fun sizeInBytes(): Long {
+        return words.size.toLong() * Long.SIZE_BYTES
+    }
+
+    /**
+     * Plain single-threaded copy, for use once training is over.
+     */
+    fun toBloomFilter(): BloomFilter<T> {
+        val result = BloomFilter(bitSize, hashCount, hash)
+        for (w in words.indices) {
+            var word = WORDS.getVolatile(words, w) as Long
+            while (word != 0L) {
+                result.setBit(w.toLong() * Long.SIZE_BITS + java.lang.Long.numberOfTrailingZeros(word))
+                word = word and word - 1
+            }
+        }
+        return result
+    }
+
+    override fun toString(): String {
+        return "ConcurrentBloomFilter(bitSize=$bitSize, hashCount=$hashCount)"
+    }
+
+    companion object {
+        private val WORDS: VarHandle = MethodHandles.arrayElementVarHandle(LongArray::class.java)
+
+        /**
+         * Filter of optimal size for [expectedInsertions] elements at false positive probability [fpp],
+         * as [BloomFilter.create].
+         */
+        fun <T> create(expectedInsertions: Long, fpp: Double, hash: ToLongFunction<in T>): ConcurrentBloomFilter<T> {
+            val bitSize = maxOf(Long.SIZE_BITS.toLong(), optimalBitSize(expectedInsertions, fpp))
+            return ConcurrentBloomFilter(bitSize, optimalHashCount(expectedInsertions, bitSize), hash)
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ru.ya.vsz.terricon.lang
+
+import java.util.function.ToLongFunction
+import kotlin.math.pow
+
+private const val COUNTER_BITS = 4
+
+/**
+ * [BloomFilter] with a 4-bit counter in place of every bit, in a [PackedMatrix], so elements can be [remove]d.
+ * Counters saturate at 15 and then stay there for good, since the true count is lost:
+ * such a cell only costs a little accuracy, never a false negative.
+ * Uses the same indexes as a [BloomFilter] of the same [size], [hashCount] and [hash], see [toBloomFilter].
+ */
+class CountingBloomFilter<T>(
+    val size: Int,
+    val hashCount: Int,
+    private val hash: ToLongFunction<in T>,
+) : MembershipFilter<T> {
+    private val counters: PackedMatrix
+
+    init {
+        require(size > 0) { "Size $size is not positive" }
+        require(hashCount > 0) { "Hash count $hashCount is not positive" }
+        counters = PackedMatrix(size, 1, COUNTER_BITS)
+    }
+
+    fun put(element: T) {
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, size.toLong()) { index ->
+            counters.incrementSaturating(index.toInt(), 0)
+        }
+    }
+
+    /**
+     * Removes an element that was [put] before, returns `false` and changes nothing if it surely was not.
+     * Removing an element never [put] that happens to be a false positive breaks other elements.
+     */
+    fun remove(element: T): Boolean {
+        if (!mightContain(element)) {
+            return false
+        }
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, size.toLong()) { index ->
+            if (counters[index.toInt(), 0] != counters.maxValue) {
+                counters.decrementSaturating(index.toInt(), 0)
+            }
+        }
+        return true
+    }
+
+    /**
+     * `false` if [element] is not in the filter, `true` if it probably is.
+     */
+    override fun mightContain(element: T): Boolean {
+        forEachBloomIndex(hash.applyAsLong(element), hashCount, size.toLong()) { index ->
+            if (counters[index.toInt(), 0] == 0) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Probability that [mightContain] is `true` for an element not in the filter, from the share of non-zero counters.
+     */
+    override fun expectedFpp(): Double {
+        return (counters.countNonZero().toDouble() / size).pow(hashCount)
+    }
+
+    override fun sizeInBytes(): Long {
+        return counters.sizeInBytes()
+    }
+
+    /**
+     * Plain filter answering [mightContain] the same way at a quarter of the memory, a snapshot for read-heavy use.
+     */
+    fun toBloomFilter(): BloomFilter<T> {
+        val result = BloomFilter(size.toLong(), hashCount, hash)
+        for (index in 0 until size) {
+            if (counters[index, 0] != 0) {
+                result.setBit(index.toLong())
+            }
+        }
+        return result
+    }
+
+    override fun toString(): String {
+        return "CountingBloomFilter(size=$size, hashCount=$hashCount)"
+    }
+
+    companion object {
+        /**
+         * Filter of optimal size for [expectedInsertions] elements at false positive probability [fpp],
+         * as [BloomFilter.create].
+         */
+        fun <T> create(expectedInsertions: Long, fpp: Double, hash: ToLongFunction<in T>): CountingBloomFilter<T> {
+            val size = Math.toIntExact(maxOf(Long.SIZE_BITS.toLong(), optimalBitSize(expectedInsertions, fpp)))
+            return CountingBloomFilter(size, optimalHashCount(expectedInsertions, size.toLong()), hash)
+        }
+    }
+}
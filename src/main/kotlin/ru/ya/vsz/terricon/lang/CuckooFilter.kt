@@ -0,0 +1,163 @@
+package ru.ya.vsz.terricon.lang
+
+import java.util.function.ToLongFunction
+import kotlin.math.ceil
+import kotlin.math.pow
+
+private const val BUCKET_SIZE = 4
+private const val MAX_KICKS = 500
+private const val EMPTY = 0.toChar()
+
+/**
+ * Cuckoo filter: a 16-bit fingerprint of every element in one of two buckets of [BUCKET_SIZE] slots,
+ * the second bucket being the first one xor the hash of the fingerprint, so a fingerprint can be moved
+ * between its buckets without the element. Supports [remove], and at low false positive rates takes
+ * less memory than a [BloomFilter], about 2 bytes per element at 95% load for 0.01%.
+ */
+class CuckooFilter<T>(
+    capacity: Int,
+    private val hash: ToLongFunction<in T>,
+) : MembershipFilter<T> {
+    private val bucketMask: Int
+    private val fingerprints: CharArray
+    private var victimFingerprint = EMPTY
+    private var victimBucket = 0
+    private var random = 0x2545F4914F6CDD1DL
+
+    init {
+        require(capacity > 0) { "Capacity $capacity is not positive" }
+        val needed = ceil(capacity / (BUCKET_SIZE * 0.95)).toInt()
+        val buckets = if (needed <= 1) 1 else Integer.highestOneBit(needed - 1) shl 1
+        bucketMask = buckets - 1
+        fingerprints = CharArray(Math.multiplyExact(buckets, BUCKET_SIZE))
+    }
+
+    /**
+     * Number of fingerprints stored.
+     */
+    var count: Int = 0
+        private set
+
+    /**
+     * Adds [element], returns `false` if the filter is full. Then nothing more can be added,
+     * but everything added before is still found.
+     */
+    fun put(element: T): Boolean {
+        if (victimFingerprint != EMPTY) {
+            return false
+        }
+        val h = hash.applyAsLong(element)
+        var fingerprint = fingerprint(h)
+        var bucket = h.toInt() and bucketMask
+        if (insert(bucket, fingerprint) || insert(alternate(bucket, fingerprint), fingerprint)) {
+            count++
+            return true
+        }
+        for (kick in 0 until MAX_KICKS) {
+            random = random xor (random shl 13) xor (random ushr 7) xor (random shl 17)
+            val slot = bucket * BUCKET_SIZE + (random and BUCKET_SIZE - 1L).toInt()
+            val kicked = fingerprints[slot]
+            fingerprints[slot] = fingerprint
+            fingerprint = kicked
+            bucket = alternate(bucket, fingerprint)
+            if (insert(bucket, fingerprint)) {
+                count++
+                return true
+            }
+        }
+        victimFingerprint = fingerprint
+        victimBucket = bucket
+        count++
+        return true
+    }
+
+    /**
+     * Removes one copy of an element that was [put] before, returns `false` if it surely was not.
+     * Removing an element never [put] that happens to be a false positive breaks another element.
+     */
+    fun remove(element: T): Boolean {
+        val h = hash.applyAsLong(element)
+        val fingerprint = fingerprint(h)
+        val bucket = h.toInt() and bucketMask
+        val other = alternate(bucket, fingerprint)
+        if (delete(bucket, fingerprint) || delete(other, fingerprint)) {
+            count--
+            if (victimFingerprint != EMPTY && insert(victimBucket, victimFingerprint)) {
+                victimFingerprint = EMPTY
+            }
+            return true
+        }
+        if (victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == other)) {
+            victimFingerprint = EMPTY
+            count--
+            return true
+        }
+        return false
+    }
+
+    override fun mightContain(element: T): Boolean {
+        val h = hash.applyAsLong(element)
+        val fingerprint = fingerprint(h)
+        val bucket = h.toInt() and bucketMask
+        val other = alternate(bucket, fingerprint)
+        return find(bucket, fingerprint) || find(other, fingerprint) ||
+            victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == other)
+    }
+
+    /**
+     * `1 - (1 - 1 / 65535)^(2 * 4 * load)`: a lookup compares against the fingerprints in two buckets.
+     */
+    override fun expectedFpp(): Double {
+        val load = count.toDouble() / fingerprints.size
+        return 1 - (1 - 1.0 / Character.MAX_VALUE.code).pow(2.0 * BUCKET_SIZE * load)
+    }
+
+    override fun sizeInBytes(): Long {
+        return fingerprints.size.toLong() * Character.BYTES
+    }
+
+    override fun toString(): String {
+        return "CuckooFilter(buckets=${bucketMask + 1}, count=$count)"
+    }
+
+    /**
+     * Non-zero 16 bits from the top of [h], zero marks an empty slot.
+     */
+    private fun fingerprint(h: Long): Char {
+        val result = (h ushr 48).toInt()
+        return (if (result == 0) 1 else result).toChar()
+    }
+
+    private fun alternate(bucket: Int, fingerprint: Char): Int {
+        return bucket xor (fingerprint.code * 0x5bd1e995) and bucketMask
+    }
+
+    private fun insert(bucket: Int, fingerprint: Char): Boolean {
+        for (slot in bucket * BUCKET_SIZE until (bucket + 1) * BUCKET_SIZE) {
+            if (fingerprints[slot] == EMPTY) {
+                fingerprints[slot] = fingerprint
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun delete(bucket: Int, fingerprint: Char): Boolean {
+        for (slot in bucket * BUCKET_SIZE until (bucket + 1) * BUCKET_SIZE) {
+            if (fingerprints[slot] == fingerprint) {
+                fingerprints[slot] = EMPTY
+                return true
+            }
+        }
+        return false
+    }
+
+    private fun find(bucket: Int, fingerprint: Char): Boolean {
+        for (slot in bucket * BUCKET_SIZE until (bucket + 1) * BUCKET_SIZE) {
+            if (fingerprints[slot] == fingerprint) {
+                return true
+            }
+        }
+        return false
+    }
+}
@@ -0,0 +1,74 @@
+package ru.ya.vsz.terricon.lang
+
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+
+/**
+ * Words copied per bulk read or write of the file formats, through one reused direct buffer.
+ */
+internal const val TRANSFER_WORDS = 1 shl 16
+
+internal fun writeFully(channel: WritableByteChannel, buffer: ByteBuffer) {
+    while (buffer.hasRemaining()) {
+        channel.write(buffer)
+    }
+}
+
+/**
+ * Fills [buffer] from [channel] starting at [position], returns the position after the bytes read.
+ * @throws EOFException if the file at [path] ends first.
+ */
+internal fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long, path: Path): Long {
+    var result = position
+    while (buffer.hasRemaining()) {
+        val count = channel.read(buffer, result)
+        if (count < 0) {
+            throw EOFException("File $path is truncated")
+        }
+        result += count
+    }
+    return result
+}
+
+/**
+ * Parses the [size]-byte header at the start of [channel] with [read], adding [path] to the message of its
+ * `IllegalArgumentException`.
+ */
+internal inline fun <H> readHeader(channel: FileChannel, path: Path, size: Int, read: (ByteBuffer) -> H): H {
+    val buffer = ByteBuffer.allocate(size)
+    channel.read(buffer, 0)
+    try {
+        return read(buffer.flip())
+    } catch (ex: IllegalArgumentException) {
+        throw IllegalArgumentException("${ex.message}: $path", ex)
+    }
+}
+
+/**
+ * Maps [words] little-endian words of [wordBytes] bytes each, starting at byte [offset] of [channel],
+ * in chunks of `2^shift` words, so that a file of any size can be addressed with a `Long` word index.
+ */
+internal fun mapChunks(
+    channel: FileChannel,
+    mode: MapMode,
+    offset: Long,
+    words: Long,
+    wordBytes: Int,
+    shift: Int,
+): Array<MappedByteBuffer> {
+    val chunkSize = 1L shl shift
+    val chunkCount = ((words + chunkSize - 1) ushr shift).toInt()
+    return Array(chunkCount) { chunk ->
+        val first = chunk.toLong() shl shift
+        val size = minOf(words - first, chunkSize)
+        val mapping = channel.map(mode, offset + first * wordBytes, size * wordBytes)
+        mapping.order(ByteOrder.LITTLE_ENDIAN)
+        mapping
+    }
+}
@@ -0,0 +1,120 @@
+package ru.ya.vsz.terricon.lang
+
+enum class IntComparison {
+    EQUAL, NOT_EQUAL, LESS, LESS_OR_EQUAL, GREATER, GREATER_OR_EQUAL;
+
+    fun test(a: Int, b: Int): Boolean = when (this) {
+        EQUAL -> a == b
+        NOT_EQUAL -> a != b
+        LESS -> a < b
+        LESS_OR_EQUAL -> a <= b
+        GREATER -> a > b
+        GREATER_OR_EQUAL -> a >= b
+    }
+}
+
+/**
+ * Loops over `IntArray` ranges behind the bulk operations of [IntMatrix]. Comparisons set bit `k`
+ * of `words` (cleared by the caller) for element `from + k`, the layout of a [BooleanMatrix] row.
+ */
+internal interface IntKernels {
+    fun sum(a: IntArray, from: Int, to: Int): Long
+
+    fun min(a: IntArray, from: Int, to: Int): Int
+
+    fun max(a: IntArray, from: Int, to: Int): Int
+
+    fun count(a: IntArray, from: Int, to: Int, value: Int): Int
+
+    fun add(a: IntArray, b: IntArray, result: IntArray)
+
+    fun multiply(a: IntArray, b: IntArray, result: IntArray)
+
+    fun compare(a: IntArray, from: Int, to: Int, comparison: IntComparison, value: Int, words: IntArray)
+
+    fun compare(a: IntArray, b: IntArray, from: Int, to: Int, comparison: IntComparison, words: IntArray)
+
+    companion object {
+        /**
+         * [VectorIntKernels] when the JVM runs with `--add-modules jdk.incubator.vector`, [ScalarIntKernels] otherwise.
+         */
+        val INSTANCE: IntKernels = vectorKernels() ?: ScalarIntKernels
+
+        private fun vectorKernels(): IntKernels? {
+            if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent) {
+                return null
+            }
+            return try {
+                Class.forName("ru.ya.vsz.terricon.lang.VectorIntKernels").getField("INSTANCE").get(null) as IntKernels
+            } catch (ex: ReflectiveOperationException) {
+                null
+            } catch (ex: LinkageError) {
+                null
+            }
+        }
+    }
+}
+
+internal object ScalarIntKernels : IntKernels {
+    override fun sum(a: IntArray, from: Int, to: Int): Long {
+        var result = 0L
+        for (k in from until to) {
+            result += a[k]
+        }
+        return result
+    }
+
+    override fun min(a: IntArray, from: Int, to: Int): Int {
+        var result = Int.MAX_VALUE
+        for (k in from until to) {
+            result = minOf(result, a[k])
+        }
+        return result
+    }
+
+    override fun max(a: IntArray, from: Int, to: Int): Int {
+        var result = Int.MIN_VALUE
+        for (k in from until to) {
+            result = maxOf(result, a[k])
+        }
+        return result
+    }
+
+    override fun count(a: IntArray, from: Int, to: Int, value: Int): Int {
+        var result = 0
+        for (k in from until to) {
+            if (a[k] == value) {
+                result++
+            }
+        }
+        return result
+    }
+
+    override fun add(a: IntArray, b: IntArray, result: IntArray) {
+        for (k in result.indices) {
+            result[k] = a[k] + b[k]
+        }
+    }
+
+    override fun multiply(a: IntArray, b: IntArray, result: IntArray) {
+        for (k in result.indices) {
+            result[k] = a[k] * b[k]
+        }
+    }
+
+    override fun compare(a: IntArray, from: Int, to: Int, comparison: IntComparison, value: Int, words: IntArray) {
+        for (k in 0 until to - from) {
+            if (comparison.test(a[from + k], value)) {
+                words[k ushr 5] = words[k ushr 5] or (1 shl k)
+            }
+        }
+    }
+
+    override fun compare(a: IntArray, b: IntArray, from: Int, to: Int, comparison: IntComparison, words: IntArray) {
+        for (k in 0 until to - from) {
+            if (comparison.test(a[from + k], b[from + k])) {
+                words[k ushr 5] = words[k ushr 5] or (1 shl k)
+            }
+        }
+    }
+}
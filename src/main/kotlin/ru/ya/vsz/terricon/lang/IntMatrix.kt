@@ -1,25 +1,467 @@
 package ru.ya.vsz.terricon.lang
 
-import java.util.*
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.*
+import java.util.function.IntUnaryOperator
+import java.util.stream.IntStream
 
-class IntMatrix(val width: Int, val height: Int) {
-    private val store: IntArray = IntArray(width * height)
+class IntMatrix internal constructor(val width: Int, val height: Int, private val store: IntStore) {
+    constructor(width: Int, height: Int) : this(width, height, HeapIntStore(Math.multiplyExact(width, height)))
 
     operator fun get(i: Int, j: Int): Int {
-        if (i < 0 || j < 0 || i >= width || j >= height) {
-            throw IndexOutOfBoundsException()
-        }
-        return store[i + j * width]
+        return store[index(i, j)]
     }
 
     operator fun set(i: Int, j: Int, value: Int) {
+        store[index(i, j)] = value
+    }
+
+    /**
+     * Atomically adds [delta] to the cell, returns the new value.
+     */
+    fun addAndGet(i: Int, j: Int, delta: Int): Int {
+        return store.getAndAdd(index(i, j), delta) + delta
+    }
+
+    /**
+     * Atomically increments the cell, returns the new value.
+     */
+    fun incrementAndGet(i: Int, j: Int): Int {
+        return addAndGet(i, j, 1)
+    }
+
+    /**
+     * Atomically replaces the cell with the result of [operation], returns the new value.
+     * [operation] may be retried under contention, so it should be side-effect-free.
+     */
+    fun accumulate(i: Int, j: Int, operation: IntUnaryOperator): Int {
+        val index = index(i, j)
+        while (true) {
+            val previous = store.getVolatile(index)
+            val next = operation.applyAsInt(previous)
+            if (store.compareAndSet(index, previous, next)) {
+                return next
+            }
+        }
+    }
+
+    fun compareAndSet(i: Int, j: Int, expected: Int, value: Int): Boolean {
+        return store.compareAndSet(index(i, j), expected, value)
+    }
+
+    /**
+     * Row-major access by linear index `i + j * width`, without the per-coordinate checks.
+     */
+    internal operator fun get(index: Long): Int {
+        return store[index]
+    }
+
+    internal operator fun set(index: Long, value: Int) {
+        store[index] = value
+    }
+
+    internal fun getAndBitwiseOr(index: Long, mask: Int): Int {
+        return store.getAndBitwiseOr(index, mask)
+    }
+
+    internal fun getAndBitwiseAnd(index: Long, mask: Int): Int {
+        return store.getAndBitwiseAnd(index, mask)
+    }
+
+    fun fill(value: Int) {
+        store.fill(value)
+    }
+
+    /**
+     * Writes changes of a file-backed matrix through to the file, does nothing for a heap one.
+     */
+    fun force() {
+        store.force()
+    }
+
+    operator fun plus(other: IntMatrix): IntMatrix {
+        checkSameSize(other)
+        val result = IntMatrix(width, height)
+        forEachSegment(other, result) { a, b, sums -> IntKernels.INSTANCE.add(a, b, sums) }
+        return result
+    }
+
+    /**
+     * Element-wise product.
+     */
+    fun timesCells(other: IntMatrix): IntMatrix {
+        checkSameSize(other)
+        val result = IntMatrix(width, height)
+        forEachSegment(other, result) { a, b, products -> IntKernels.INSTANCE.multiply(a, b, products) }
+        return result
+    }
+
+    operator fun minus(other: IntMatrix): IntMatrix {
+        checkSameSize(other)
+        val result = IntMatrix(width, height)
+        for (index in 0 until width.toLong() * height) {
+            result.store[index] = store[index] - other.store[index]
+        }
+        return result
+    }
+
+    operator fun plus(value: Int): IntMatrix {
+        val result = IntMatrix(width, height)
+        for (index in 0 until width.toLong() * height) {
+            result.store[index] = store[index] + value
+        }
+        return result
+    }
+
+    operator fun times(value: Int): IntMatrix {
+        val result = IntMatrix(width, height)
+        for (index in 0 until width.toLong() * height) {
+            result.store[index] = store[index] * value
+        }
+        return result
+    }
+
+    fun sum(): Long {
+        var result = 0L
+        forEachSegment { array, from, to -> result += IntKernels.INSTANCE.sum(array, from, to) }
+        return result
+    }
+
+    /**
+     * @throws NoSuchElementException if the matrix is empty.
+     */
+    fun min(): Int {
+        if (width == 0 || height == 0) {
+            throw NoSuchElementException()
+        }
+        var result = Int.MAX_VALUE
+        forEachSegment { array, from, to -> result = minOf(result, IntKernels.INSTANCE.min(array, from, to)) }
+        return result
+    }
+
+    /**
+     * @throws NoSuchElementException if the matrix is empty.
+     */
+    fun max(): Int {
+        if (width == 0 || height == 0) {
+            throw NoSuchElementException()
+        }
+        var result = Int.MIN_VALUE
+        forEachSegment { array, from, to -> result = maxOf(result, IntKernels.INSTANCE.max(array, from, to)) }
+        return result
+    }
+
+    /**
+     * Number of cells equal to [value].
+     */
+    fun count(value: Int): Long {
+        var result = 0L
+        forEachSegment { array, from, to -> result += IntKernels.INSTANCE.count(array, from, to, value) }
+        return result
+    }
+
+    /**
+     * Mask of the cells `c` for which `c <comparison> value` holds.
+     */
+    fun compare(comparison: IntComparison, value: Int): BooleanMatrix {
+        return mask(this) { array, _, from, words ->
+            IntKernels.INSTANCE.compare(array, from, from + width, comparison, value, words)
+        }
+    }
+
+    /**
+     * Mask of the cells for which `this[i, j] <comparison> other[i, j]` holds.
+     */
+    fun compare(comparison: IntComparison, other: IntMatrix): BooleanMatrix {
+        checkSameSize(other)
+        return mask(other) { array, otherArray, from, words ->
+            IntKernels.INSTANCE.compare(array, otherArray, from, from + width, comparison, words)
+        }
+    }
+
+    /**
+     * Mask of the cells not less than [value].
+     */
+    fun threshold(value: Int): BooleanMatrix {
+        return compare(IntComparison.GREATER_OR_EQUAL, value)
+    }
+
+    /**
+     * Matrix product, `result[i, j] = sum of this[k, j] * other[i, k]` over `k`, wrapping around on overflow
+     * like `Int` arithmetic does. Computed by cache-sized tiles, in parallel for large matrices.
+     */
+    operator fun times(other: IntMatrix): IntMatrix {
+        return multiply(other, false)
+    }
+
+    /**
+     * Matrix product accumulated in `Long`.
+     * @throws ArithmeticException if a cell of the result does not fit in an `Int`.
+     */
+    fun timesExact(other: IntMatrix): IntMatrix {
+        return multiply(other, true)
+    }
+
+    fun transpose(): IntMatrix {
+        val result = IntMatrix(height, width)
+        forEachRowBlock(height, width.toLong() * height >= PARALLEL_THRESHOLD) { fromRow, toRow ->
+            for (iBlock in 0 until width step BLOCK_SIZE) {
+                val toColumn = minOf(iBlock + BLOCK_SIZE, width)
+                for (j in fromRow until toRow) {
+                    for (i in iBlock until toColumn) {
+                        result.store[j + i.toLong() * height] = store[i + j.toLong() * width]
+                    }
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Writes the matrix file format of [map] to [path], so it can be [load]ed or mapped back.
+     */
+    fun save(path: Path) {
+        FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING).use { write(it) }
+    }
+
+    /**
+     * Streams the matrix file format of [map] to [channel].
+     */
+    fun write(channel: WritableByteChannel) {
+        writeMatrixFile(channel, header(), store)
+    }
+
+    /**
+     * Overwrites rows `[fromRow, toRow)` of a file previously written by [save] for a matrix of the same size.
+     */
+    fun saveRows(path: Path, fromRow: Int, toRow: Int) {
+        checkRows(fromRow, toRow)
+        writeMatrixRows(path, header(), store, fromRow, toRow)
+    }
+
+    internal fun write(channel: WritableByteChannel, header: MatrixFileHeader) {
+        writeMatrixFile(channel, header, store)
+    }
+
+    internal fun saveRows(path: Path, header: MatrixFileHeader, fromRow: Int, toRow: Int) {
+        writeMatrixRows(path, header, store, fromRow, toRow)
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is IntMatrix) return false
+        if (width != other.width || height != other.height) return false
+        for (index in 0 until width.toLong() * height) {
+            if (store[index] != other.store[index]) {
+                return false
+            }
+        }
+        return true
+    }
+
+    override fun hashCode(): Int {
+        var result = 31 * width + height
+        for (index in 0 until width.toLong() * height) {
+            result = 31 * result + store[index]
+        }
+        return result
+    }
+
+    /**
+     * Rows of the result are split into blocks, one task each. Within a block [other] is walked by
+     * `BLOCK_SIZE x BLOCK_SIZE` tiles, each copied once into a local array and reused by every row of the block.
+     */
+    private fun multiply(other: IntMatrix, exact: Boolean): IntMatrix {
+        require(width == other.height) {
+            "Cannot multiply ${width}x$height by ${other.width}x${other.height}"
+        }
+        val result = IntMatrix(other.width, height)
+        val parallel = width.toLong() * height * other.width >= PARALLEL_THRESHOLD
+        forEachRowBlock(height, parallel) { fromRow, toRow ->
+            val sums = LongArray((toRow - fromRow) * other.width)
+            val tile = IntArray(BLOCK_SIZE * BLOCK_SIZE)
+            for (kBlock in 0 until width step BLOCK_SIZE) {
+                val toK = minOf(kBlock + BLOCK_SIZE, width)
+                for (iBlock in 0 until other.width step BLOCK_SIZE) {
+                    val tileWidth = minOf(iBlock + BLOCK_SIZE, other.width) - iBlock
+                    for (k in kBlock until toK) {
+                        for (i in 0 until tileWidth) {
+                            tile[(k - kBlock) * BLOCK_SIZE + i] = other.store[iBlock + i + k.toLong() * other.width]
+                        }
+                    }
+                    for (j in fromRow until toRow) {
+                        val sumsOffset = (j - fromRow) * other.width + iBlock
+                        for (k in kBlock until toK) {
+                            val a = store[k + j.toLong() * width].toLong()
+                            if (a == 0L) {
+                                continue
+                            }
+                            val tileOffset = (k - kBlock) * BLOCK_SIZE
+                            if (exact) {
+                                for (i in 0 until tileWidth) {
+                                    sums[sumsOffset + i] = Math.addExact(sums[sumsOffset + i], a * tile[tileOffset + i])
+                                }
+                            } else {
+                                for (i in 0 until tileWidth) {
+                                    sums[sumsOffset + i] += a * tile[tileOffset + i]
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            for (j in fromRow until toRow) {
+                for (i in 0 until other.width) {
+                    val sum = sums[(j - fromRow) * other.width + i]
+                    result.store[i + j.toLong() * other.width] = if (exact) Math.toIntExact(sum) else sum.toInt()
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Runs [action] over all words, in place for a heap matrix and by copied segments otherwise.
+     */
+    private inline fun forEachSegment(action: (IntArray, Int, Int) -> Unit) {
+        val store = store
+        if (store is HeapIntStore) {
+            action(store.array, 0, store.array.size)
+            return
+        }
+        val size = width.toLong() * height
+        val buffer = IntArray(minOf(SEGMENT_SIZE.toLong(), size).toInt())
+        var index = 0L
+        while (index < size) {
+            val length = minOf(SEGMENT_SIZE.toLong(), size - index).toInt()
+            store.read(index, buffer, 0, length)
+            action(buffer, 0, length)
+            index += length
+        }
+    }
+
+    /**
+     * Runs [action] over the words of this matrix and [other] into the heap [result] of the same size: on the
+     * arrays themselves for heap matrices, otherwise by segments copied from the stores and back to [result].
+     */
+    private inline fun forEachSegment(other: IntMatrix, result: IntMatrix, action: (IntArray, IntArray, IntArray) -> Unit) {
+        val store = store
+        val otherStore = other.store
+        val resultArray = (result.store as HeapIntStore).array
+        if (store is HeapIntStore && otherStore is HeapIntStore) {
+            action(store.array, otherStore.array, resultArray)
+            return
+        }
+        // The kernels take whole arrays, so the buffers are only reallocated for the last, shorter segment
+        var a = IntArray(minOf(SEGMENT_SIZE, resultArray.size))
+        var b = IntArray(a.size)
+        var c = IntArray(a.size)
+        var index = 0
+        while (index < resultArray.size) {
+            val length = minOf(SEGMENT_SIZE, resultArray.size - index)
+            if (length < a.size) {
+                a = IntArray(length)
+                b = IntArray(length)
+                c = IntArray(length)
+            }
+            store.read(index.toLong(), a, 0, length)
+            otherStore.read(index.toLong(), b, 0, length)
+            action(a, b, c)
+            System.arraycopy(c, 0, resultArray, index, length)
+            index += length
+        }
+    }
+
+    /**
+     * Builds a mask row by row: [row] sets the bits of the row in `words` from the cells `[from, from + width)` of
+     * the arrays of this matrix and [other], the heap arrays themselves or the row copied from the stores.
+     */
+    private inline fun mask(other: IntMatrix, row: (IntArray, IntArray, Int, IntArray) -> Unit): BooleanMatrix {
+        val result = BooleanMatrix(width, height)
+        val words = IntArray(((width.toLong() + Integer.SIZE - 1) / Integer.SIZE).toInt())
+        val store = store
+        val otherStore = other.store
+        val heap = store is HeapIntStore && otherStore is HeapIntStore
+        val array = if (store is HeapIntStore && heap) store.array else IntArray(width)
+        val otherArray = if (otherStore is HeapIntStore && heap) otherStore.array else if (other === this) array else IntArray(width)
+        for (j in 0 until height) {
+            words.fill(0)
+            var from = j * width
+            if (!heap) {
+                store.read(j.toLong() * width, array, 0, width)
+                if (otherArray !== array) {
+                    otherStore.read(j.toLong() * width, otherArray, 0, width)
+                }
+                from = 0
+            }
+            row(array, otherArray, from, words)
+            for (w in words.indices) {
+                result.setWord(w, j, words[w])
+            }
+        }
+        return result
+    }
+
+    private fun header(): MatrixFileHeader {
+        return MatrixFileHeader(Integer.SIZE, width, height)
+    }
+
+    private fun checkRows(fromRow: Int, toRow: Int) {
+        if (fromRow < 0 || toRow > height || fromRow > toRow) {
+            throw IndexOutOfBoundsException("Rows [$fromRow, $toRow) out of [0, $height)")
+        }
+    }
+
+    private fun checkSameSize(other: IntMatrix) {
+        require(width == other.width && height == other.height) {
+            "Matrix ${other.width}x${other.height} does not match ${width}x$height"
+        }
+    }
+
+    private fun index(i: Int, j: Int): Long {
         if (i < 0 || j < 0 || i >= width || j >= height) {
             throw IndexOutOfBoundsException()
         }
-        store[i + j * width] = value
+        return i + j.toLong() * width
     }
 
-    fun fill(value: Int) {
-        Arrays.fill(store, value)
+    companion object {
+        private const val BLOCK_SIZE = 64
+        private const val PARALLEL_THRESHOLD = 1L shl 20
+        private const val SEGMENT_SIZE = 1 shl 16
+
+        private inline fun forEachRowBlock(rows: Int, parallel: Boolean, crossinline action: (Int, Int) -> Unit) {
+            val blocks = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE
+            val stream = IntStream.range(0, blocks)
+            (if (parallel) stream.parallel() else stream).forEach { block ->
+                action(block * BLOCK_SIZE, minOf(block * BLOCK_SIZE + BLOCK_SIZE, rows))
+            }
+        }
+
+        /**
+         * Matrix backed by a memory-mapped file at [path], created zero-filled if absent.
+         * Its size is limited by the address space rather than by `Int` indexing.
+         */
+        fun map(path: Path, width: Int, height: Int): IntMatrix {
+            return IntMatrix(width, height, MappedIntStore.map(path, MatrixFileHeader(Integer.SIZE, width, height)))
+        }
+
+        /**
+         * Heap matrix read from a file written by [save] or [map].
+         */
+        fun load(path: Path): IntMatrix {
+            val (header, store) = readMatrixFile(path, Integer.SIZE)
+            return IntMatrix(header.width, header.height, store)
+        }
+
+        /**
+         * Read-only matrix over a file written by [save] or [map], usable without loading it.
+         */
+        fun mapReadOnly(path: Path): IntMatrix {
+            val (header, store) = MappedIntStore.mapReadOnly(path, Integer.SIZE)
+            return IntMatrix(header.width, header.height, store)
+        }
     }
 }
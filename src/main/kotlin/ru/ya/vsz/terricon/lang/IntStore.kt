@@ -0,0 +1,87 @@
+package ru.ya.vsz.terricon.lang
+
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.VarHandle
+import java.util.*
+
+/**
+ * Flat word storage behind [IntMatrix], addressed by a row-major linear index.
+ */
+internal interface IntStore {
+    operator fun get(index: Long): Int
+
+    operator fun set(index: Long, value: Int)
+
+    fun fill(value: Int)
+
+    /**
+     * Copies words `[index, index + length)` into [destination] starting at [offset].
+     */
+    fun read(index: Long, destination: IntArray, offset: Int, length: Int)
+
+    /**
+     * Atomic `store[index] |= mask`, returns the previous word.
+     */
+    fun getAndBitwiseOr(index: Long, mask: Int): Int
+
+    /**
+     * Atomic `store[index] &= mask`, returns the previous word.
+     */
+    fun getAndBitwiseAnd(index: Long, mask: Int): Int
+
+    /**
+     * Atomic `store[index] += delta`, returns the previous value.
+     */
+    fun getAndAdd(index: Long, delta: Int): Int
+
+    fun compareAndSet(index: Long, expected: Int, value: Int): Boolean
+
+    fun getVolatile(index: Long): Int
+
+    fun force() {
+    }
+}
+
+internal class HeapIntStore(size: Int) : IntStore {
+    val array = IntArray(size)
+
+    override fun get(index: Long): Int {
+        return array[index.toInt()]
+    }
+
+    override fun set(index: Long, value: Int) {
+        array[index.toInt()] = value
+    }
+
+    override fun fill(value: Int) {
+        Arrays.fill(array, value)
+    }
+
+    override fun read(index: Long, destination: IntArray, offset: Int, length: Int) {
+        System.arraycopy(array, index.toInt(), destination, offset, length)
+    }
+
+    override fun getAndBitwiseOr(index: Long, mask: Int): Int {
+        return WORDS.getAndBitwiseOr(array, index.toInt(), mask) as Int
+    }
+
+    override fun getAndBitwiseAnd(index: Long, mask: Int): Int {
+        return WORDS.getAndBitwiseAnd(array, index.toInt(), mask) as Int
+    }
+
+    override fun getAndAdd(index: Long, delta: Int): Int {
+        return WORDS.getAndAdd(array, index.toInt(), delta) as Int
+    }
+
+    override fun compareAndSet(index: Long, expected: Int, value: Int): Boolean {
+        return WORDS.compareAndSet(array, index.toInt(), expected, value) as Boolean
+    }
+
+    override fun getVolatile(index: Long): Int {
+        return WORDS.getVolatile(array, index.toInt()) as Int
+    }
+
+    private companion object {
+        val WORDS: VarHandle = MethodHandles.arrayElementVarHandle(IntArray::class.java)
+    }
+}
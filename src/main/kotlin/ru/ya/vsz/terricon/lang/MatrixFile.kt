@@ -0,0 +1,233 @@
+package ru.ya.vsz.terricon.lang
+
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.VarHandle
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.IntBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.*
+
+/**
+ * Header of a matrix file. The file is little-endian: a [SIZE]-byte header followed by
+ * the row-major words of the matrix, every row padded to a whole number of words,
+ * so it can be mapped and used as is. [VERSION] changes whenever the layout does.
+ */
+internal data class MatrixFileHeader(
+    val cellBits: Int,
+    val width: Int,
+    val height: Int,
+) {
+    val wordsPerRow: Int
+        get() = ((width.toLong() * cellBits + Integer.SIZE - 1) / Integer.SIZE).toInt()
+
+    val words: Long
+        get() = wordsPerRow.toLong() * height
+
+    fun write(buffer: ByteBuffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(MAGIC)
+            .putInt(VERSION)
+            .putInt(cellBits)
+            .putInt(width)
+            .putInt(height)
+        while (buffer.position() < SIZE) {
+            buffer.put(0)
+        }
+    }
+
+    companion object {
+        const val SIZE = 64
+        const val MAGIC = 0x58544D54 // "TMTX"
+        const val VERSION = 1
+
+        fun read(buffer: ByteBuffer): MatrixFileHeader {
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+            require(buffer.remaining() >= SIZE && buffer.getInt() == MAGIC) { "Not a matrix file" }
+            val version = buffer.getInt()
+            require(version == VERSION) { "Unsupported matrix file version $version" }
+            val header = MatrixFileHeader(buffer.getInt(), buffer.getInt(), buffer.getInt())
+            buffer.position(buffer.position() + SIZE - 5 * Integer.BYTES)
+            return header
+        }
+    }
+}
+
+/**
+ * Writes [header] and the words of [store] to [channel].
+ */
+internal fun writeMatrixFile(channel: WritableByteChannel, header: MatrixFileHeader, store: IntStore) {
+    val buffer = ByteBuffer.allocate(MatrixFileHeader.SIZE)
+    header.write(buffer)
+    writeFully(channel, buffer.flip())
+    store.transfer(0, header.words) { writeFully(channel, it) }
+}
+
+/**
+ * Overwrites rows `[fromRow, toRow)` of an existing matrix file in place.
+ */
+internal fun writeMatrixRows(path: Path, header: MatrixFileHeader, store: IntStore, fromRow: Int, toRow: Int) {
+    FileChannel.open(path, READ, WRITE).use { channel ->
+        val existing = readHeader(channel, path)
+        require(existing == header) { "Matrix file $path holds $existing, not $header" }
+        var position = MatrixFileHeader.SIZE + fromRow.toLong() * header.wordsPerRow * Integer.BYTES
+        store.transfer(fromRow.toLong() * header.wordsPerRow, toRow.toLong() * header.wordsPerRow) { buffer ->
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position)
+            }
+        }
+    }
+}
+
+/**
+ * Reads a whole matrix file into a heap store with bulk channel reads.
+ */
+internal fun readMatrixFile(path: Path, cellBits: Int): Pair<MatrixFileHeader, HeapIntStore> {
+    FileChannel.open(path, READ).use { channel ->
+        val header = readHeader(channel, path)
+        require(header.cellBits == cellBits) { "Matrix file $path has ${header.cellBits} bits per cell, not $cellBits" }
+        val store = HeapIntStore(Math.toIntExact(header.words))
+        val buffer = ByteBuffer.allocateDirect(TRANSFER_WORDS * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+        var position = MatrixFileHeader.SIZE.toLong()
+        var index = 0
+        while (index < store.array.size) {
+            val length = minOf(TRANSFER_WORDS, store.array.size - index)
+            buffer.clear().limit(length * Integer.BYTES)
+            position = readFully(channel, buffer, position, path)
+            buffer.flip().asIntBuffer().get(store.array, index, length)
+            index += length
+        }
+        return Pair(header, store)
+    }
+}
+
+/**
+ * Passes words `[from, to)` to [sink] as little-endian bytes, in chunks through one reused direct buffer.
+ */
+private fun IntStore.transfer(from: Long, to: Long, sink: (ByteBuffer) -> Unit) {
+    val words = IntArray(minOf(TRANSFER_WORDS.toLong(), to - from).toInt())
+    val buffer = ByteBuffer.allocateDirect(words.size * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+    var index = from
+    while (index < to) {
+        val length = minOf(TRANSFER_WORDS.toLong(), to - index).toInt()
+        read(index, words, 0, length)
+        buffer.clear()
+        buffer.asIntBuffer().put(words, 0, length)
+        buffer.limit(length * Integer.BYTES)
+        sink(buffer)
+        index += length
+    }
+}
+
+private fun readHeader(channel: FileChannel, path: Path): MatrixFileHeader {
+    return readHeader(channel, path, MatrixFileHeader.SIZE) { MatrixFileHeader.read(it) }
+}
+
+/**
+ * Words of a matrix file mapped into memory in chunks of up to 1 GiB, so the index is not limited to `Int`.
+ */
+internal class MappedIntStore private constructor(
+    private val mappings: Array<MappedByteBuffer>,
+) : IntStore {
+    private val chunks: Array<IntBuffer> = Array(mappings.size) { mappings[it].asIntBuffer() }
+
+    override fun get(index: Long): Int {
+        return chunks[(index ushr CHUNK_SHIFT).toInt()][(index and CHUNK_MASK).toInt()]
+    }
+
+    override fun set(index: Long, value: Int) {
+        chunks[(index ushr CHUNK_SHIFT).toInt()].put((index and CHUNK_MASK).toInt(), value)
+    }
+
+    override fun fill(value: Int) {
+        chunks.forEach { chunk ->
+            for (index in 0 until chunk.limit()) {
+                chunk.put(index, value)
+            }
+        }
+    }
+
+    override fun read(index: Long, destination: IntArray, offset: Int, length: Int) {
+        var copied = 0
+        while (copied < length) {
+            val chunk = chunks[((index + copied) ushr CHUNK_SHIFT).toInt()]
+            val position = ((index + copied) and CHUNK_MASK).toInt()
+            val count = minOf(length - copied, chunk.limit() - position)
+            chunk.get(position, destination, offset + copied, count)
+            copied += count
+        }
+    }
+
+    override fun getAndBitwiseOr(index: Long, mask: Int): Int {
+        return WORDS.getAndBitwiseOr(mappings[(index ushr CHUNK_SHIFT).toInt()], offset(index), mask) as Int
+    }
+
+    override fun getAndBitwiseAnd(index: Long, mask: Int): Int {
+        return WORDS.getAndBitwiseAnd(mappings[(index ushr CHUNK_SHIFT).toInt()], offset(index), mask) as Int
+    }
+
+    override fun getAndAdd(index: Long, delta: Int): Int {
+        return WORDS.getAndAdd(mappings[(index ushr CHUNK_SHIFT).toInt()], offset(index), delta) as Int
+    }
+
+    override fun compareAndSet(index: Long, expected: Int, value: Int): Boolean {
+        return WORDS.compareAndSet(mappings[(index ushr CHUNK_SHIFT).toInt()], offset(index), expected, value) as Boolean
+    }
+
+    override fun getVolatile(index: Long): Int {
+        return WORDS.getVolatile(mappings[(index ushr CHUNK_SHIFT).toInt()], offset(index)) as Int
+    }
+
+    override fun force() {
+        mappings.forEach { it.force() }
+    }
+
+    private fun offset(index: Long): Int {
+        return (index and CHUNK_MASK).toInt() * Integer.BYTES
+    }
+
+    companion object {
+        private const val CHUNK_SHIFT = 28
+        private const val CHUNK_MASK = (1L shl CHUNK_SHIFT) - 1
+        private val WORDS: VarHandle = MethodHandles.byteBufferViewVarHandle(IntArray::class.java, ByteOrder.LITTLE_ENDIAN)
+
+        /**
+         * Maps a matrix file for reading and writing, creating a zero-filled one if [path] is empty or absent.
+         */
+        fun map(path: Path, header: MatrixFileHeader): MappedIntStore {
+            FileChannel.open(path, CREATE, READ, WRITE).use { channel ->
+                if (channel.size() == 0L) {
+                    val buffer = ByteBuffer.allocate(MatrixFileHeader.SIZE)
+                    header.write(buffer)
+                    channel.write(buffer.flip(), 0)
+                } else {
+                    val existing = readHeader(channel, path)
+                    require(existing == header) { "Matrix file $path holds $existing, not $header" }
+                }
+                return map(channel, MapMode.READ_WRITE, header.words)
+            }
+        }
+
+        /**
+         * Maps an existing matrix file read-only, nothing is read until the words are accessed.
+         */
+        fun mapReadOnly(path: Path, cellBits: Int): Pair<MatrixFileHeader, MappedIntStore> {
+            FileChannel.open(path, READ).use { channel ->
+                val header = readHeader(channel, path)
+                require(header.cellBits == cellBits) { "Matrix file $path has ${header.cellBits} bits per cell, not $cellBits" }
+                require(channel.size() >= MatrixFileHeader.SIZE + header.words * Integer.BYTES) {
+                    "Matrix file $path is truncated"
+                }
+                return Pair(header, map(channel, MapMode.READ_ONLY, header.words))
+            }
+        }
+
+        private fun map(channel: FileChannel, mode: MapMode, words: Long): MappedIntStore {
+            return MappedIntStore(mapChunks(channel, mode, MatrixFileHeader.SIZE.toLong(), words, Integer.BYTES, CHUNK_SHIFT))
+        }
+    }
+}
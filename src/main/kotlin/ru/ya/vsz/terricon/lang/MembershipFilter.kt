@@ -0,0 +1,18 @@
+package ru.ya.vsz.terricon.lang
+
+/**
+ * Approximate set: no false negatives, false positives with probability about [expectedFpp].
+ */
+interface MembershipFilter<in T> {
+    /**
+     * `false` if [element] is surely not in the set, `true` if it probably is.
+     */
+    fun mightContain(element: T): Boolean
+
+    /**
+     * Probability that [mightContain] is `true` for an element not in the set.
+     */
+    fun expectedFpp(): Double
+
+    fun sizeInBytes(): Long
+}
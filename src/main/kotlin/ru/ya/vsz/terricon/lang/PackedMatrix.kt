@@ -0,0 +1,155 @@
+package ru.ya.vsz.terricon.lang
+
+/**
+ * Matrix of small unsigned counters in `[0, maxValue]`, [bitsPerCell] bits each, packed into
+ * the rows of an [IntMatrix] the way [BooleanMatrix] packs bits. [bitsPerCell] divides 32,
+ * so a cell never crosses a word and may be updated atomically. Padding cells past [width]
+ * in the last word of every row are always kept zero.
+ */
+class PackedMatrix(val width: Int, val height: Int, val bitsPerCell: Int) {
+    private val cellsPerWord: Int
+    private val store: IntMatrix
+    private val cellMask: Int
+    private val lastWordMask: Int
+
+    init {
+        require(bitsPerCell in 1..Integer.SIZE && Integer.SIZE % bitsPerCell == 0) {
+            "Bits per cell $bitsPerCell do not divide ${Integer.SIZE}"
+        }
+        cellsPerWord = Integer.SIZE / bitsPerCell
+        store = IntMatrix(((width.toLong() + cellsPerWord - 1) / cellsPerWord).toInt(), height)
+        cellMask = if (bitsPerCell == Integer.SIZE) 0.inv() else (1 shl bitsPerCell) - 1
+        val lastCells = width % cellsPerWord
+        lastWordMask = if (lastCells > 0) (1 shl lastCells * bitsPerCell) - 1 else 0.inv()
+    }
+
+    /**
+     * Largest value a cell holds, `2^bitsPerCell - 1` (or `-1` read unsigned for 32 bits).
+     */
+    val maxValue: Int
+        get() = cellMask
+
+    operator fun get(i: Int, j: Int): Int {
+        checkCell(i, j)
+        return store[i / cellsPerWord, j] ushr shift(i) and cellMask
+    }
+
+    operator fun set(i: Int, j: Int, value: Int) {
+        checkCell(i, j)
+        require(value and cellMask.inv() == 0) { "Value $value does not fit into $bitsPerCell bits" }
+        val word = store[i / cellsPerWord, j]
+        store[i / cellsPerWord, j] = word and (cellMask shl shift(i)).inv() or (value shl shift(i))
+    }
+
+    /**
+     * Adds one unless the cell is at [maxValue], returns the new value.
+     */
+    fun incrementSaturating(i: Int, j: Int): Int {
+        val value = get(i, j)
+        if (value == cellMask) {
+            return value
+        }
+        store[i / cellsPerWord, j] = store[i / cellsPerWord, j] + (1 shl shift(i))
+        return value + 1
+    }
+
+    /**
+     * Subtracts one unless the cell is zero, returns the new value.
+     */
+    fun decrementSaturating(i: Int, j: Int): Int {
+        val value = get(i, j)
+        if (value == 0) {
+            return value
+        }
+        store[i / cellsPerWord, j] = store[i / cellsPerWord, j] - (1 shl shift(i))
+        return value - 1
+    }
+
+    /**
+     * Atomic [incrementSaturating]: concurrent calls never lose updates of other cells sharing the same word.
+     */
+    fun incrementSaturatingAtomic(i: Int, j: Int): Int {
+        checkCell(i, j)
+        val batchIndex = i / cellsPerWord
+        while (true) {
+            val word = store[batchIndex, j]
+            val value = word ushr shift(i) and cellMask
+            if (value == cellMask) {
+                return value
+            }
+            if (store.compareAndSet(batchIndex, j, word, word + (1 shl shift(i)))) {
+                return value + 1
+            }
+        }
+    }
+
+    fun fill(value: Int) {
+        require(value and cellMask.inv() == 0) { "Value $value does not fit into $bitsPerCell bits" }
+        var word = 0
+        for (k in 0 until cellsPerWord) {
+            word = word or (value shl k * bitsPerCell)
+        }
+        store.fill(word)
+        if (store.width > 0 && lastWordMask != 0.inv()) {
+            for (j in 0 until height) {
+                store[store.width - 1, j] = word and lastWordMask
+            }
+        }
+    }
+
+    /**
+     * Number of non-zero cells.
+     */
+    fun countNonZero(): Long {
+        var result = 0L
+        for (j in 0 until height) {
+            for (batchIndex in 0 until store.width) {
+                var word = store[batchIndex, j]
+                while (word != 0) {
+                    result++
+                    word = word and (cellMask shl Integer.numberOfTrailingZeros(word) / bitsPerCell * bitsPerCell).inv()
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Memory taken by the cells.
+     */
+    fun sizeInBytes(): Long {
+        return store.width.toLong() * height * Integer.BYTES
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is PackedMatrix) return false
+        return width == other.width && bitsPerCell == other.bitsPerCell && store == other.store
+    }
+
+    override fun hashCode(): Int {
+        return 31 * (31 * width + bitsPerCell) + store.hashCode()
+    }
+
+    override fun toString(): String {
+        val result = StringBuilder()
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                result.append(' ')
+                result.append(Integer.toUnsignedString(get(i, j)))
+            }
+            result.append("\n")
+        }
+        return result.toString()
+    }
+
+    private fun shift(i: Int): Int {
+        return i % cellsPerWord * bitsPerCell
+    }
+
+    private fun checkCell(i: Int, j: Int) {
+        if (i < 0 || j < 0 || i >= width || j >= height) {
+            throw IndexOutOfBoundsException()
+        }
+    }
+}
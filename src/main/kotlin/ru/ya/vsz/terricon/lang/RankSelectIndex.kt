@@ -0,0 +1,97 @@
+package ru.ya.vsz.terricon.lang
+
+private const val SUPERBLOCK_BITS = 16
+private const val BLOCK_BITS = 9
+private const val BLOCK_WORDS = (1 shl BLOCK_BITS) / Integer.SIZE
+private const val BLOCKS_PER_SUPERBLOCK = 1 shl SUPERBLOCK_BITS - BLOCK_BITS
+
+/**
+ * Rank/select directory over the words of a single-row [BooleanMatrix]: an absolute `Long` count
+ * before every 65536 bits and a relative `Char` count before every 512 bits, about 3.2% on top of the bits.
+ * Only valid until the next change of the row.
+ */
+internal class RankSelectIndex(private val row: BooleanMatrix) {
+    private val wordCount = ((row.width.toLong() + Integer.SIZE - 1) / Integer.SIZE).toInt()
+    private val superblocks = LongArray((row.width ushr SUPERBLOCK_BITS) + 2)
+    private val blocks = CharArray((row.width ushr BLOCK_BITS) + 2)
+
+    init {
+        var total = 0L
+        var inSuperblock = 0
+        for (block in blocks.indices) {
+            if (block % BLOCKS_PER_SUPERBLOCK == 0) {
+                superblocks[block / BLOCKS_PER_SUPERBLOCK] = total
+                inSuperblock = 0
+            }
+            blocks[block] = inSuperblock.toChar()
+            for (w in block * BLOCK_WORDS until minOf(block * BLOCK_WORDS + BLOCK_WORDS, wordCount)) {
+                val count = Integer.bitCount(row.getWord(w, 0))
+                inSuperblock += count
+                total += count
+            }
+        }
+        superblocks.fill(total, (blocks.size - 1) / BLOCKS_PER_SUPERBLOCK + 1)
+    }
+
+    val cardinality: Long = rank(row.width)
+
+    /**
+     * Number of set bits in `[0, i)`, at most [BLOCK_WORDS] popcounts.
+     */
+    fun rank(i: Int): Long {
+        val block = i ushr BLOCK_BITS
+        var result = superblocks[i ushr SUPERBLOCK_BITS] + blocks[block].code
+        val word = i / Integer.SIZE
+        for (w in block * BLOCK_WORDS until word) {
+            result += Integer.bitCount(row.getWord(w, 0))
+        }
+        if (i % Integer.SIZE != 0) {
+            result += Integer.bitCount(row.getWord(word, 0) and (1 shl i % Integer.SIZE) - 1)
+        }
+        return result
+    }
+
+    /**
+     * Index of the set bit with [rank] set bits before it, or `-1` if there are not that many.
+     * Binary search over superblocks, then over their blocks, then a scan of one block.
+     */
+    fun select(rank: Long): Int {
+        if (rank < 0 || rank >= cardinality) {
+            return -1
+        }
+        val superblock = lastNotAbove(0, superblocks.size - 1, rank) { superblocks[it] }
+        var remaining = rank - superblocks[superblock]
+        val firstBlock = superblock * BLOCKS_PER_SUPERBLOCK
+        val lastBlock = minOf(firstBlock + BLOCKS_PER_SUPERBLOCK, blocks.size) - 1
+        val block = lastNotAbove(firstBlock, lastBlock, remaining) { blocks[it].code.toLong() }
+        remaining -= blocks[block].code
+        var w = block * BLOCK_WORDS
+        while (true) {
+            var word = row.getWord(w, 0)
+            val count = Integer.bitCount(word)
+            if (remaining < count) {
+                repeat(remaining.toInt()) { word = word and word - 1 }
+                return w * Integer.SIZE + Integer.numberOfTrailingZeros(word)
+            }
+            remaining -= count
+            w++
+        }
+    }
+
+    /**
+     * Last index in `[from, to]` whose count does not exceed [value], counts being non-decreasing.
+     */
+    private inline fun lastNotAbove(from: Int, to: Int, value: Long, count: (Int) -> Long): Int {
+        var low = from
+        var high = to
+        while (low < high) {
+            val middle = (low + high + 1) ushr 1
+            if (count(middle) <= value) {
+                low = middle
+            } else {
+                high = middle - 1
+            }
+        }
+        return low
+    }
+}
@@ -0,0 +1,100 @@
+package ru.ya.vsz.terricon.lang
+
+import java.util.function.ToLongFunction
+import kotlin.math.pow
+
+/**
+ * Bloom filter for an unknown number of elements: a chain of [BloomFilter]s, the next one started once
+ * the last is full. Capacities grow by [growth] and false positive probabilities shrink by [tightening],
+ * starting from `fpp * (1 - tightening)`, so the compound probability stays below [fpp] however long the chain.
+ */
+class ScalableBloomFilter<T>(
+    private val initialCapacity: Long,
+    val fpp: Double,
+    private val hash: ToLongFunction<in T>,
+    private val growth: Int = 2,
+    private val tightening: Double = 0.8,
+) : MembershipFilter<T> {
+    private val filters = ArrayList<BloomFilter<T>>()
+    private var capacity = 0L
+    private var lastCount = 0L
+
+    init {
+        require(initialCapacity > 0) { "Initial capacity $initialCapacity is not positive" }
+        require(fpp > 0 && fpp < 1) { "False positive probability $fpp is not in (0, 1)" }
+        require(growth >= 1) { "Growth $growth is less than 1" }
+        require(tightening > 0 && tightening < 1) { "Tightening $tightening is not in (0, 1)" }
+        addFilter()
+    }
+
+    /**
+     * Number of elements added, not counting those already reported by [mightContain].
+     */
+    var count: Long = 0
+        private set
+
+    val filterCount: Int
+        get() = filters.size
+
+    /**
+     * Adds [element] to the last filter unless it already might be in the chain, returns `true` if it was added.
+     */
+    fun put(element: T): Boolean {
+        if (mightContain(element)) {
+            return false
+        }
+        if (lastCount == capacity) {
+            addFilter()
+        }
+        filters.last().put(element)
+        lastCount++
+        count++
+        return true
+    }
+
+    /**
+     * `false` if [element] was never [put], `true` if it probably was.
+     */
+    override fun mightContain(element: T): Boolean {
+        for (k in filters.indices.reversed()) {
+            if (filters[k].mightContain(element)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Share of set bits in the filter taking new elements, about one half when it is full.
+     */
+    fun fillRatio(): Double {
+        val last = filters.last()
+        return last.bitCount.toDouble() / last.bitSize
+    }
+
+    /**
+     * Probability that [mightContain] is `true` for an element never [put], combined from the filters' estimates.
+     */
+    override fun expectedFpp(): Double {
+        var negative = 1.0
+        for (filter in filters) {
+            negative *= 1 - filter.expectedFpp()
+        }
+        return 1 - negative
+    }
+
+    override fun sizeInBytes(): Long {
+        return filters.sumOf { it.sizeInBytes() }
+    }
+
+    override fun toString(): String {
+        return "ScalableBloomFilter(filters=$filterCount, count=$count, sizeInBytes=${sizeInBytes()}, fpp=${expectedFpp()})"
+    }
+
+    private fun addFilter() {
+        capacity = if (filters.isEmpty()) initialCapacity else Math.multiplyExact(capacity, growth.toLong())
+        val filterFpp = fpp * (1 - tightening) * tightening.pow(filters.size)
+        filters += BloomFilter.create(capacity, filterFpp, hash)
+        lastCount = 0
+    }
+}
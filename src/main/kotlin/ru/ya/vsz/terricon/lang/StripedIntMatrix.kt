@@ -0,0 +1,55 @@
+package ru.ya.vsz.terricon.lang
+
+/**
+ * Counting matrix for many concurrent writers, e.g. parallel 2D histograms.
+ * Each thread adds into one of [stripes] shards chosen by its id, so a hot cell is spread over
+ * several words instead of being contended by all threads. Uses [stripes] times the memory of a plain [IntMatrix].
+ */
+class StripedIntMatrix(
+    val width: Int,
+    val height: Int,
+    val stripes: Int = Runtime.getRuntime().availableProcessors(),
+) {
+    private val shards: Array<IntMatrix>
+
+    init {
+        require(stripes > 0) { "Stripes count must be positive: $stripes" }
+        shards = Array(stripes) { IntMatrix(width, height) }
+    }
+
+    fun add(i: Int, j: Int, delta: Int) {
+        shard().addAndGet(i, j, delta)
+    }
+
+    fun increment(i: Int, j: Int) {
+        add(i, j, 1)
+    }
+
+    /**
+     * Sum of the cell over all shards.
+     */
+    operator fun get(i: Int, j: Int): Int {
+        var result = 0
+        shards.forEach { result += it[i, j] }
+        return result
+    }
+
+    /**
+     * Shards merged into a new [IntMatrix]. Exact once the writers are done,
+     * while they are running every cell is some recent value.
+     */
+    fun snapshot(): IntMatrix {
+        val result = IntMatrix(width, height)
+        val size = width.toLong() * height
+        shards.forEach { shard ->
+            for (index in 0 until size) {
+                result[index] += shard[index]
+            }
+        }
+        return result
+    }
+
+    private fun shard(): IntMatrix {
+        return shards[(Thread.currentThread().id % stripes).toInt()]
+    }
+}
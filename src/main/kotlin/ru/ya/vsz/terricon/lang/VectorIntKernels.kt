@@ -0,0 +1,158 @@
+package ru.ya.vsz.terricon.lang
+
+import jdk.incubator.vector.IntVector
+import jdk.incubator.vector.LongVector
+import jdk.incubator.vector.VectorMask
+import jdk.incubator.vector.VectorOperators.ADD
+import jdk.incubator.vector.VectorOperators.EQ
+import jdk.incubator.vector.VectorOperators.GE
+import jdk.incubator.vector.VectorOperators.GT
+import jdk.incubator.vector.VectorOperators.I2L
+import jdk.incubator.vector.VectorOperators.LE
+import jdk.incubator.vector.VectorOperators.LT
+import jdk.incubator.vector.VectorOperators.MAX
+import jdk.incubator.vector.VectorOperators.MIN
+import jdk.incubator.vector.VectorOperators.NE
+
+/**
+ * [IntKernels] on `jdk.incubator.vector`, only loaded through [IntKernels.INSTANCE] when the module is present.
+ * Tails shorter than a vector are left to [ScalarIntKernels], comparison tails are packed in place.
+ */
+internal object VectorIntKernels : IntKernels {
+    private val SPECIES = IntVector.SPECIES_PREFERRED
+    private val LONG_SPECIES = LongVector.SPECIES_PREFERRED
+
+    init {
+        // Comparison masks are packed into at most two words of a row
+        check(SPECIES.length() <= Integer.SIZE)
+    }
+
+    override fun sum(a: IntArray, from: Int, to: Int): Long {
+        var sums = LongVector.zero(LONG_SPECIES)
+        var k = from
+        while (k <= to - SPECIES.length()) {
+            val vector = IntVector.fromArray(SPECIES, a, k)
+            sums = sums.add(vector.convertShape(I2L, LONG_SPECIES, 0) as LongVector)
+                .add(vector.convertShape(I2L, LONG_SPECIES, 1) as LongVector)
+            k += SPECIES.length()
+        }
+        return sums.reduceLanes(ADD) + ScalarIntKernels.sum(a, k, to)
+    }
+
+    override fun min(a: IntArray, from: Int, to: Int): Int {
+        var result = IntVector.broadcast(SPECIES, Int.MAX_VALUE)
+        var k = from
+        while (k <= to - SPECIES.length()) {
+            result = result.min(IntVector.fromArray(SPECIES, a, k))
+            k += SPECIES.length()
+        }
+        return minOf(result.reduceLanes(MIN), ScalarIntKernels.min(a, k, to))
+    }
+
+    override fun max(a: IntArray, from: Int, to: Int): Int {
+        var result = IntVector.broadcast(SPECIES, Int.MIN_VALUE)
+        var k = from
+        while (k <= to - SPECIES.length()) {
+            result = result.max(IntVector.fromArray(SPECIES, a, k))
+            k += SPECIES.length()
+        }
+        return maxOf(result.reduceLanes(MAX), ScalarIntKernels.max(a, k, to))
+    }
+
+    override fun count(a: IntArray, from: Int, to: Int, value: Int): Int {
+        var result = 0
+        var k = from
+        while (k <= to - SPECIES.length()) {
+            result += IntVector.fromArray(SPECIES, a, k).eq(value).trueCount()
+            k += SPECIES.length()
+        }
+        return result + ScalarIntKernels.count(a, k, to, value)
+    }
+
+    override fun add(a: IntArray, b: IntArray, result: IntArray) {
+        val bound = SPECIES.loopBound(result.size)
+        for (k in 0 until bound step SPECIES.length()) {
+            IntVector.fromArray(SPECIES, a, k).add(IntVector.fromArray(SPECIES, b, k)).intoArray(result, k)
+        }
+        for (k in bound until result.size) {
+            result[k] = a[k] + b[k]
+        }
+    }
+
+    override fun multiply(a: IntArray, b: IntArray, result: IntArray) {
+        val bound = SPECIES.loopBound(result.size)
+        for (k in 0 until bound step SPECIES.length()) {
+            IntVector.fromArray(SPECIES, a, k).mul(IntVector.fromArray(SPECIES, b, k)).intoArray(result, k)
+        }
+        for (k in bound until result.size) {
+            result[k] = a[k] * b[k]
+        }
+    }
+
+    /**
+     * A constant operator per branch lets the JIT turn every branch into a single vector comparison.
+     */
+    override fun compare(a: IntArray, from: Int, to: Int, comparison: IntComparison, value: Int, words: IntArray) {
+        val k = when (comparison) {
+            IntComparison.EQUAL -> compare(from, to, words) { load(a, it).compare(EQ, value) }
+            IntComparison.NOT_EQUAL -> compare(from, to, words) { load(a, it).compare(NE, value) }
+            IntComparison.LESS -> compare(from, to, words) { load(a, it).compare(LT, value) }
+            IntComparison.LESS_OR_EQUAL -> compare(from, to, words) { load(a, it).compare(LE, value) }
+            IntComparison.GREATER -> compare(from, to, words) { load(a, it).compare(GT, value) }
+            IntComparison.GREATER_OR_EQUAL -> compare(from, to, words) { load(a, it).compare(GE, value) }
+        }
+        tail(words, k, to - from) { comparison.test(a[from + it], value) }
+    }
+
+    override fun compare(a: IntArray, b: IntArray, from: Int, to: Int, comparison: IntComparison, words: IntArray) {
+        val k = when (comparison) {
+            IntComparison.EQUAL -> compare(from, to, words) { load(a, it).compare(EQ, load(b, it)) }
+            IntComparison.NOT_EQUAL -> compare(from, to, words) { load(a, it).compare(NE, load(b, it)) }
+            IntComparison.LESS -> compare(from, to, words) { load(a, it).compare(LT, load(b, it)) }
+            IntComparison.LESS_OR_EQUAL -> compare(from, to, words) { load(a, it).compare(LE, load(b, it)) }
+            IntComparison.GREATER -> compare(from, to, words) { load(a, it).compare(GT, load(b, it)) }
+            IntComparison.GREATER_OR_EQUAL -> compare(from, to, words) { load(a, it).compare(GE, load(b, it)) }
+        }
+        tail(words, k, to - from) { comparison.test(a[from + it], b[from + it]) }
+    }
+
+    /**
+     * Packs [mask] of every whole vector in `[from, to)` into [words], returns the length processed.
+     */
+    private inline fun compare(from: Int, to: Int, words: IntArray, mask: (Int) -> VectorMask<Int>): Int {
+        var k = 0
+        while (k <= to - from - SPECIES.length()) {
+            setBits(words, k, mask(from + k).toLong())
+            k += SPECIES.length()
+        }
+        return k
+    }
+
+    private fun load(array: IntArray, index: Int): IntVector {
+        return IntVector.fromArray(SPECIES, array, index)
+    }
+
+    private fun setBits(words: IntArray, position: Int, bits: Long) {
+        if (bits == 0L) {
+            return
+        }
+        val shifted = bits shl (position and Integer.SIZE - 1)
+        words[position ushr 5] = words[position ushr 5] or shifted.toInt()
+        if ((shifted ushr Integer.SIZE) != 0L) {
+            words[(position ushr 5) + 1] = words[(position ushr 5) + 1] or (shifted ushr Integer.SIZE).toInt()
+        }
+    }
+
+    /**
+     * Packs [test] of the tail `[position, length)`, shorter than a vector, into [words].
+     */
+    private inline fun tail(words: IntArray, position: Int, length: Int, test: (Int) -> Boolean) {
+        var bits = 0L
+        for (k in position until length) {
+            if (test(k)) {
+                bits = bits or (1L shl k - position)
+            }
+        }
+        setBits(words, position, bits)
+    }
+}
@@ -0,0 +1,154 @@
+package ru.ya.vsz.terricon.art
+
+import java.awt.Color
+import java.awt.image.BufferedImage
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
+import javax.imageio.ImageIO
+
+class ArticleTest {
+    private val pixelFunction = PixelFunction { x, y -> (x * 0x10307 + y * 0x3001) xor (y shl 24) }
+
+    /**
+     * Picture drawn pixel by pixel with [BufferedImage.setRGB], as before tiles.
+     */
+    private fun expectedImage(width: Int, height: Int): BufferedImage {
+        val result = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                result.setRGB(x, y, pixelFunction.argb(x, y))
+            }
+        }
+        return result
+    }
+
+    private fun assertSameImage(expected: BufferedImage, actual: BufferedImage, message: String) {
+        assertEquals(expected.width, actual.width, message)
+        assertEquals(expected.height, actual.height, message)
+        for (y in 0 until expected.height) {
+            for (x in 0 until expected.width) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "$message at ($x, $y)")
+            }
+        }
+    }
+
+    private fun inTempDirectory(action: (Path) -> Unit) {
+        val directory = Files.createTempDirectory("article")
+        try {
+            action(directory)
+        } finally {
+            Files.walk(directory).use { paths -> paths.sorted(Comparator.reverseOrder()).forEach { Files.delete(it) } }
+        }
+    }
+
+    private fun writeArticle(directory: Path, color: Int) {
+        Article(directory.toString(), "article.md", 2).use { article ->
+            article + "# Pictures\n" + Article.Picture(10, 5, pixelFunction = pixelFunction) + "\n"
+            article + Article.Picture(4, 4) { _, _ -> color } + "\n"
+        }
+    }
+
+    @Test
+    fun tilesCoverPicturesOfAnySize() {
+        val size = Article.Picture.TILE_SIZE
+        for ((width, height) in listOf(1 to 1, size + 1 to 1, 1 to 2 * size + 2, size to size, 2 * size + 3 to size - 1)) {
+            val expected = expectedImage(width, height)
+            for (parallel in listOf(false, true)) {
+                assertSameImage(expected, Article.Picture(width, height, parallel, pixelFunction).image, "${width}x$height, parallel $parallel")
+            }
+        }
+    }
+
+    @Test
+    fun packedColorsMatchAwtColors() {
+        assertEquals(Color(1, 2, 3).rgb, argb(1, 2, 3))
+        assertEquals(Color(255, 0, 128, 7).rgb, argb(r = 255, b = 128, a = 7))
+        assertEquals(Color.getHSBColor(0.3f, 0.5f, 1f).rgb, hsb(0.3f, 0.5f))
+        assertFailsWith<IllegalArgumentException> { argb(r = 256) }
+        assertFailsWith<IllegalArgumentException> { argb(a = -1) }
+        val byColor = Article.Picture.ofColors(3, 2) { x, y -> Color(x * 80, y * 100, 0) }
+        val byArgb = Article.Picture(3, 2) { x, y -> argb(x * 80, y * 100) }
+        assertSameImage(byColor.image, byArgb.image, "3x2")
+    }
+
+    @Test
+    fun unchangedPicturesAreNotWrittenAgain() {
+        inTempDirectory { directory ->
+            writeArticle(directory, argb(r = 1))
+            val markdown = directory.resolve("article.md")
+            assertEquals("# Pictures\n![](pic1.png)\n![](pic2.png)\n", Files.readString(markdown))
+            val first = directory.resolve("pic1.png")
+            val second = directory.resolve("pic2.png")
+            val old = FileTime.fromMillis(0)
+            Files.setLastModifiedTime(first, old)
+            Files.setLastModifiedTime(second, old)
+            Files.delete(markdown)
+            writeArticle(directory, argb(g = 1))
+            assertEquals("# Pictures\n![](pic1.png)\n![](pic2.png)\n", Files.readString(markdown))
+            assertEquals(old, Files.getLastModifiedTime(first))
+            assertNotEquals(old, Files.getLastModifiedTime(second))
+            assertTrue(Files.isRegularFile(directory.resolve("article.md.pictures")))
+        }
+    }
+
+    @Test
+    fun drawingAfterAddingDoesNotChangeTheFile() {
+        inTempDirectory { directory ->
+            val picture = Article.Picture(10, 5, pixelFunction = pixelFunction)
+            val expected = expectedImage(10, 5)
+            val article = Article(directory.toString(), "article.md", 1)
+            article.use {
+                it + picture
+                picture.image.graphics.fillRect(0, 0, 10, 5)
+            }
+            assertFailsWith<IllegalStateException> { article + picture }
+            assertSameImage(expected, ImageIO.read(directory.resolve("pic1.png").toFile()), "pic1.png")
+        }
+    }
+
+    @Test
+    fun encodingFailuresAreThrownByClose() {
+        inTempDirectory { directory ->
+            // ImageIO replaces an empty directory, one with a file in it cannot be overwritten
+            Files.createDirectories(directory.resolve("pic2.png"))
+            Files.createFile(directory.resolve("pic2.png").resolve("x"))
+            val failure = assertFailsWith<IOException> { writeArticle(directory, argb(b = 1)) }
+            assertTrue(failure.message!!.contains("pic2.png"), failure.message)
+            assertEquals("# Pictures\n![](pic1.png)\n![](pic2.png)\n", Files.readString(directory.resolve("article.md")))
+            assertTrue(Files.isRegularFile(directory.resolve("pic1.png")))
+            val hashes = Files.readAllLines(directory.resolve("article.md.pictures"))
+            assertEquals(listOf("pic1.png"), hashes.map { it.substringBefore(' ') })
+            Files.delete(directory.resolve("pic2.png").resolve("x"))
+            Files.delete(directory.resolve("pic2.png"))
+            writeArticle(directory, argb(b = 1))
+            assertTrue(Files.isRegularFile(directory.resolve("pic2.png")))
+            assertFalse(Files.isDirectory(directory.resolve("pic2.png")))
+        }
+    }
+
+    @Test
+    fun garbledHashesAreIgnored() {
+        inTempDirectory { directory ->
+            val hashes = directory.resolve("article.md.pictures")
+            Files.writeString(hashes, "pic1.png\npic2.png zz\n\npic1.png 1 2\n")
+            writeArticle(directory, argb(r = 1))
+            assertTrue(Files.isRegularFile(directory.resolve("pic1.png")))
+            assertTrue(Files.isRegularFile(directory.resolve("pic2.png")))
+            assertEquals(listOf("pic1.png", "pic2.png"), Files.readAllLines(hashes).map { it.substringBefore(' ') })
+
+            Files.write(hashes, byteArrayOf(0xC3.toByte(), 0x28, 0x0A, 0xFF.toByte()))
+            Files.delete(directory.resolve("pic1.png"))
+            writeArticle(directory, argb(r = 1))
+            assertTrue(Files.isRegularFile(directory.resolve("pic1.png")))
+            assertEquals("# Pictures\n![](pic1.png)\n![](pic2.png)\n", Files.readString(directory.resolve("article.md")))
+        }
+    }
+}
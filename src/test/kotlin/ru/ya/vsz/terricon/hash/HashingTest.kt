@@ -0,0 +1,71 @@
+package ru.ya.vsz.terricon.hash
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class HashingTest {
+    private val xxHash = XxHash64()
+
+    @Test
+    fun xxHashMatchesReferenceValues() {
+        assertEquals(0xEF46DB3751D8E999uL.toLong(), xxHash.hash(ByteArray(0)))
+        assertEquals(0xD24EC4F1A98C6E5BuL.toLong(), xxHash.hash("a".toByteArray()))
+        assertEquals(0x44BC2CF5AD770999uL.toLong(), xxHash.hash("abc".toByteArray()))
+        assertEquals(0xFBCEA83C8A378BF1uL.toLong(), xxHash.hash("Nobody inspects the spammish repetition".toByteArray()))
+    }
+
+    @Test
+    fun equalBytesGiveEqualHashes() {
+        val text = "The quick brown fox jumps over the lazy dog, жёлтая лиса"
+        for (length in 0..text.length) {
+            val chars = text.substring(0, length)
+            assertEquals(xxHash.hash(chars.toByteArray(Charsets.UTF_16LE)), xxHash.hash(chars))
+            val padded = ("xyz$chars").toByteArray(Charsets.UTF_16LE)
+            assertEquals(xxHash.hash(chars), xxHash.hash(padded, 6, length * 2))
+        }
+        val ints = IntArray(19) { fmix64(it.toLong()).toInt() }
+        val intBytes = ByteArray(ints.size * 4) { (ints[it / 4] ushr it % 4 * 8).toByte() }
+        for (length in 0..ints.size - 1) {
+            assertEquals(xxHash.hash(intBytes, 4, length * 4), xxHash.hash(ints, 1, length))
+        }
+        val value = 0x0123456789ABCDEFL
+        val bytes = ByteArray(8) { (value ushr it * 8).toByte() }
+        assertEquals(xxHash.hash(bytes), xxHash.hash(value))
+    }
+
+    @Test
+    fun familyMembersDiffer() {
+        val family = XxHash64.family(4, 42)
+        assertEquals(4, family.map { it.hash(7L) }.toSet().size)
+        assertEquals(family.map { it.seed }, XxHash64.family(4, 42).map { it.seed })
+    }
+
+    @Test
+    fun reductionStaysInRangeAndIsEven() {
+        val counts = IntArray(7)
+        for (i in 0 until 70_000) {
+            val value = reduce(fmix64(i.toLong()).toInt(), counts.size)
+            counts[value]++
+            assertTrue(reduce(fmix64(i.toLong()), 1_000_000_007L) in 0 until 1_000_000_007L)
+        }
+        assertEquals(0, reduce(Int.MIN_VALUE, 0))
+        assertEquals(999, reduce(-1, 1000))
+        assertEquals(999L, reduce(Long.MIN_VALUE + Long.MAX_VALUE, 1000L))
+        counts.forEach { assertTrue(it in 9_500..10_500) }
+    }
+
+    @Test
+    fun qualityChecksTellMixersFromIdentity() {
+        val identity = HashSubject("identity", Integer.SIZE, Integer.SIZE) { it }
+        val mixer = HashSubject("fmix64", Long.SIZE_BITS, Long.SIZE_BITS, ::fmix64)
+        val keys = LongArray(1 shl 16) { it.toLong() }
+        val bad = measure(identity, keys, 256, samples = 1000, count = 1000)
+        val good = measure(mixer, keys, 256, samples = 1000, count = 1000)
+        assertEquals(1.0, bad.avalancheMeanBias)
+        assertTrue(good.avalancheMeanBias < 0.05)
+        assertTrue(bad.chiSquareReducedScore > 100)
+        assertTrue(good.chiSquareReducedScore < 5)
+        assertEquals(0L, good.collisions)
+    }
+}
@@ -0,0 +1,189 @@
+package ru.ya.vsz.terricon.lang
+
+import ru.ya.vsz.terricon.hash.fmix64
+import java.nio.file.Files
+import java.util.function.ToLongFunction
+import java.util.stream.LongStream
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class BloomFilterTest {
+    private val insertions = 10_000L
+    private val fpp = 0.01
+
+    private fun falsePositiveRate(mightContain: (Long) -> Boolean): Double {
+        return (insertions until insertions * 11).count { mightContain(it) }.toDouble() / (insertions * 10)
+    }
+
+    @Test
+    fun noFalseNegativesAndRequestedFalsePositiveRate() {
+        val filter = BloomFilter.create<Long>(insertions, fpp, ::fmix64)
+        for (i in 0 until insertions) {
+            filter.put(i)
+        }
+        for (i in 0 until insertions) {
+            assertTrue(filter.mightContain(i))
+        }
+        assertEquals(7, filter.hashCount)
+        assertEquals(fpp, filter.expectedFpp(), fpp * 0.2)
+        assertEquals(fpp, falsePositiveRate(filter::mightContain), fpp * 0.3)
+    }
+
+    @Test
+    fun blockedFilterReportsItsHigherFalsePositiveRate() {
+        val filter = BlockedBloomFilter.create<Long>(insertions, fpp, ::fmix64)
+        for (i in 0 until insertions) {
+            filter.put(i)
+        }
+        for (i in 0 until insertions) {
+            assertTrue(filter.mightContain(i))
+        }
+        val expected = filter.expectedFpp()
+        assertTrue(expected > fpp)
+        assertEquals(expected, falsePositiveRate(filter::mightContain), expected * 0.3)
+    }
+
+    @Test
+    fun countingFilterForgetsRemovedElements() {
+        val filter = CountingBloomFilter.create<Long>(insertions, fpp, ::fmix64)
+        for (i in 0 until insertions) {
+            filter.put(i)
+        }
+        for (i in 0 until insertions / 2) {
+            assertTrue(filter.remove(i))
+        }
+        for (i in insertions / 2 until insertions) {
+            assertTrue(filter.mightContain(i))
+        }
+        assertTrue(falsePositiveRate(filter::mightContain) < fpp)
+        assertTrue((0 until insertions / 2).count { filter.mightContain(it) } < insertions * fpp)
+
+        val snapshot = filter.toBloomFilter()
+        for (i in 0 until insertions * 2) {
+            assertEquals(filter.mightContain(i), snapshot.mightContain(i))
+        }
+        assertTrue(snapshot.sizeInBytes() * 4 <= filter.sizeInBytes() + Long.SIZE_BYTES * 4)
+    }
+
+    @Test
+    fun concurrentFilterLosesNoParallelInserts() {
+        val filter = ConcurrentBloomFilter.create<Long>(insertions, fpp, ::fmix64)
+        filter.putAll(LongStream.range(0, insertions).boxed())
+        for (i in 0 until insertions) {
+            assertTrue(filter.mightContain(i))
+        }
+        val sequential = BloomFilter.create<Long>(insertions, fpp, ::fmix64)
+        for (i in 0 until insertions) {
+            sequential.put(i)
+        }
+        assertEquals(sequential.bitCount, filter.bitCount)
+        assertEquals(sequential.bitCount, filter.toBloomFilter().bitCount)
+    }
+
+    @Test
+    fun scalableFilterStaysWithinFalsePositiveBound() {
+        val filter = ScalableBloomFilter<Long>(insertions / 64, fpp, ::fmix64)
+        for (i in 0 until insertions) {
+            filter.put(i)
+        }
+        for (i in 0 until insertions) {
+            assertTrue(filter.mightContain(i))
+        }
+        assertTrue(filter.filterCount > 5)
+        assertTrue(filter.expectedFpp() < fpp)
+        assertTrue(falsePositiveRate(filter::mightContain) < fpp)
+        assertTrue(filter.fillRatio() < 0.6)
+    }
+
+    @Test
+    fun cuckooFilterRemovesElements() {
+        val filter: CuckooFilter<Long> = CuckooFilter(insertions.toInt(), ::fmix64)
+        for (i in 0 until insertions) {
+            assertTrue(filter.put(i))
+        }
+        for (i in 0 until insertions / 2) {
+            assertTrue(filter.remove(i))
+        }
+        for (i in insertions / 2 until insertions) {
+            assertTrue(filter.mightContain(i))
+        }
+        assertEquals(insertions.toInt() / 2, filter.count)
+        assertTrue(falsePositiveRate(filter::mightContain) < 0.001)
+    }
+
+    @Test
+    fun binaryFuseFilterTakesUnderOneAndAHalfBytesPerElement() {
+        val elements = (0 until insertions).toList()
+        val filter: MembershipFilter<Long> = BinaryFuseFilter.of(elements + elements.take(10), ::fmix64)
+        for (i in elements) {
+            assertTrue(filter.mightContain(i))
+        }
+        assertTrue(filter.sizeInBytes() < insertions * 3 / 2)
+        assertEquals(filter.expectedFpp(), falsePositiveRate(filter::mightContain), filter.expectedFpp() * 0.3)
+    }
+
+    @Test
+    fun savedFilterIsLoadedAndMappedWithItsHash() {
+        val path = Files.createTempFile("bloom-filter", ".bin")
+        try {
+            val filter = BloomFilter.create<Long>(insertions, fpp, 1, 7) { fmix64(it + 7) }
+            for (k in 0 until insertions) {
+                filter.put(k)
+            }
+            filter.save(path)
+            val hash = { hashId: Int, seed: Long ->
+                require(hashId == 1) { "Unknown hash $hashId" }
+                ToLongFunction<Long> { fmix64(it + seed) }
+            }
+            val loaded = BloomFilter.load(path, hash)
+            val mapped = BloomFilter.mapReadOnly(path, hash)
+            assertEquals(insertions, mapped.insertCount)
+            assertEquals(filter.bitCount, loaded.bitCount)
+            assertEquals(filter.expectedFpp(), mapped.expectedFpp())
+            for (k in 0 until insertions * 2) {
+                assertEquals(filter.mightContain(k), loaded.mightContain(k))
+                assertEquals(filter.mightContain(k), mapped.mightContain(k))
+            }
+            assertFailsWith<IllegalArgumentException> { BloomFilter.mapReadOnly<Long>(path) { id, _ -> throw IllegalArgumentException("Unknown hash $id") } }
+            Files.write(path, ByteArray(16))
+            assertFailsWith<IllegalArgumentException> { BloomFilter.load(path, hash) }
+        } finally {
+            Files.deleteIfExists(path)
+        }
+    }
+
+    @Test
+    fun shardsMergeIntoTheFilterOfAllElements() {
+        val hash = ToLongFunction<Long>(::fmix64)
+        val shards = List(4) { BloomFilter.create(insertions, fpp, hash) }
+        for (k in 0 until insertions) {
+            shards[(k % shards.size).toInt()].put(k)
+        }
+        val merged = shards[0].copy()
+        shards.drop(1).forEach { merged.union(it) }
+        val central = BloomFilter.create(insertions, fpp, hash)
+        for (k in 0 until insertions) {
+            central.put(k)
+        }
+        assertEquals(central.bitCount, merged.bitCount)
+        assertEquals(insertions, merged.insertCount)
+        assertEquals(insertions.toDouble(), merged.estimatedCardinality(), insertions * 0.03)
+
+        val odd = BloomFilter.create(insertions, fpp, hash)
+        (insertions / 2 until insertions * 3 / 2).forEach { odd.put(it) }
+        assertEquals(1.0 / 3, central.jaccard(odd), 0.03)
+        val both = central.copy()
+        both.intersect(odd)
+        assertTrue((insertions / 2 until insertions).all { both.mightContain(it) })
+        assertFailsWith<IllegalArgumentException> { merged.union(BloomFilter.create(insertions, fpp, 0, 1, hash)) }
+    }
+
+    @Test
+    fun invalidParametersAreRejected() {
+        assertFailsWith<IllegalArgumentException> { BloomFilter.create<Long>(0, fpp, ::fmix64) }
+        assertFailsWith<IllegalArgumentException> { BloomFilter.create<Long>(insertions, 1.0, ::fmix64) }
+        assertFailsWith<IllegalArgumentException> { BlockedBloomFilter<Long>(1024, 17, ::fmix64) }
+    }
+}
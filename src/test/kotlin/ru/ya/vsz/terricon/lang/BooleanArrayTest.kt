@@ -0,0 +1,70 @@
+package ru.ya.vsz.terricon.lang
+
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class BooleanArrayTest {
+    private fun assertRankSelect(array: BooleanArray) {
+        var count = 0L
+        for (i in 0 until array.size) {
+            assertEquals(count, array.rank1(i), "rank1($i)")
+            if (array[i]) {
+                assertEquals(i, array.select1(count), "select1($count)")
+                count++
+            }
+        }
+        assertEquals(count, array.rank1(array.size))
+        assertEquals(count, array.cardinality())
+        assertEquals(-1, array.select1(count))
+        assertEquals(-1, array.select1(count + 1))
+        assertEquals(-1, array.select1(-1))
+    }
+
+    @Test
+    fun emptyArray() {
+        val array = BooleanArray(0)
+        assertEquals(0L, array.cardinality())
+        assertEquals(0L, array.rank1(0))
+        assertEquals(-1, array.select1(0))
+        assertFailsWith<IndexOutOfBoundsException> { array.rank1(1) }
+        assertFailsWith<IndexOutOfBoundsException> { array.rank1(-1) }
+    }
+
+    @Test
+    fun allOnesAcrossSuperblocks() {
+        val array = BooleanArray(70_001)
+        array.fill(true)
+        assertRankSelect(array)
+        assertEquals(70_000, array.select1(70_000))
+        assertEquals(65_536L, array.rank1(65_536))
+    }
+
+    @Test
+    fun lastWord() {
+        val array = BooleanArray(100)
+        array[99] = true
+        assertEquals(1L, array.cardinality())
+        assertEquals(0L, array.rank1(99))
+        assertEquals(1L, array.rank1(100))
+        assertEquals(99, array.select1(0))
+        assertEquals(-1, array.select1(1))
+        array.setAtomic(96, true)
+        assertRankSelect(array)
+    }
+
+    @Test
+    fun randomBitsMatchCounting() {
+        val random = Random(1)
+        for (size in listOf(1, 31, 32, 33, 511, 512, 513, 66_000)) {
+            val array = BooleanArray(size)
+            for (i in 0 until size) {
+                array[i] = random.nextInt(5) == 0
+            }
+            assertRankSelect(array)
+            array.setAtomic(size - 1, !array[size - 1])
+            assertRankSelect(array)
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package ru.ya.vsz.terricon.lang
+
+import java.nio.file.Files
+import java.util.stream.IntStream
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotEquals
+
+class BooleanMatrixTest {
+    private val width = 70
+    private val height = 5
+
+    private fun random(seed: Int): BooleanMatrix {
+        val random = Random(seed)
+        val result = BooleanMatrix(width, height)
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                result[i, j] = random.nextBoolean()
+            }
+        }
+        return result
+    }
+
+    private fun expected(a: BooleanMatrix, b: BooleanMatrix, operation: (Boolean, Boolean) -> Boolean): BooleanMatrix {
+        val result = BooleanMatrix(width, height)
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                result[i, j] = operation(a[i, j], b[i, j])
+            }
+        }
+        return result
+    }
+
+    @Test
+    fun bulkOperationsMatchPerCellOperations() {
+        val a = random(1)
+        val b = random(2)
+        assertEquals(expected(a, b) { x, y -> x && y }, a.and(b, BooleanMatrix(width, height)))
+        assertEquals(expected(a, b) { x, y -> x || y }, a.or(b, BooleanMatrix(width, height)))
+        assertEquals(expected(a, b) { x, y -> x xor y }, a.xor(b, BooleanMatrix(width, height)))
+        assertEquals(expected(a, b) { x, y -> x && !y }, a.andNot(b, BooleanMatrix(width, height)))
+        assertEquals(expected(a, b) { x, _ -> !x }, a.not(BooleanMatrix(width, height)))
+    }
+
+    @Test
+    fun inPlaceOperationOnRowRange() {
+        val a = random(1)
+        val b = random(2)
+        val original = random(1)
+        a.or(b, 1, 3)
+        val full = original.or(b, BooleanMatrix(width, height))
+        assertEquals(true, a.equals(original, 0, 1))
+        assertEquals(true, a.equals(full, 1, 3))
+        assertEquals(true, a.equals(original, 3, height))
+        assertNotEquals(original, a)
+    }
+
+    @Test
+    fun cardinalityIgnoresPadding() {
+        val matrix = BooleanMatrix(width, height)
+        matrix.fill(true)
+        assertEquals(width.toLong() * height, matrix.cardinality())
+        assertEquals(width.toLong() * 2, matrix.cardinality(1, 3))
+        matrix.not()
+        assertEquals(0L, matrix.cardinality())
+        matrix.not()
+        assertEquals(width.toLong() * height, matrix.cardinality())
+    }
+
+    @Test
+    fun sizeMismatchIsRejected() {
+        assertFailsWith<IllegalArgumentException> {
+            BooleanMatrix(width, height).and(BooleanMatrix(width + 1, height))
+        }
+        assertFailsWith<IndexOutOfBoundsException> {
+            BooleanMatrix(width, height).cardinality(0, height + 1)
+        }
+    }
+
+    @Test
+    fun setBitIterationMatchesPerCellScan() {
+        val matrix = random(3)
+        val expected = ArrayList<Long>()
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                if (matrix[i, j]) {
+                    expected += packInts(i, j)
+                }
+            }
+        }
+        val iterated = ArrayList<Long>()
+        val iterator = matrix.setBits()
+        while (iterator.hasNext()) {
+            iterated += iterator.nextLong()
+        }
+        assertContentEquals(expected, iterated)
+
+        val visited = ArrayList<Long>()
+        matrix.forEachSetBit { i, j -> visited += packInts(i, j) }
+        assertContentEquals(expected, visited)
+    }
+
+    @Test
+    fun nextBitSkipsToFollowingRows() {
+        val matrix = BooleanMatrix(width, height)
+        matrix[65, 3] = true
+        assertEquals(packInts(65, 3), matrix.nextSetBit(0, 0))
+        assertEquals(packInts(65, 3), matrix.nextSetBit(65, 3))
+        assertEquals(-1L, matrix.nextSetBit(66, 3))
+        assertEquals(-1L, matrix.nextSetBit(width, height - 1))
+
+        matrix.not()
+        assertEquals(packInts(65, 3), matrix.nextClearBit(0, 0))
+        assertEquals(-1L, matrix.nextClearBit(66, 3))
+    }
+
+    @Test
+    fun mappedMatrixIsReopenedReadOnly() {
+        val path = Files.createTempFile("boolean-matrix", ".bin")
+        try {
+            Files.delete(path)
+            val original = random(4)
+            val mapped = BooleanMatrix.map(path, width, height)
+            original.or(mapped, mapped)
+            mapped.force()
+
+            val reopened = BooleanMatrix.mapReadOnly(path)
+            assertEquals(original, reopened)
+            assertEquals(original.cardinality(), reopened.cardinality())
+        } finally {
+            Files.deleteIfExists(path)
+        }
+    }
+
+    @Test
+    fun savedMatrixIsLoadedAndUpdatedByRows() {
+        val path = Files.createTempFile("boolean-matrix", ".bin")
+        try {
+            val original = random(5)
+            original.save(path)
+            assertEquals(original, BooleanMatrix.load(path))
+            assertEquals(original, BooleanMatrix.mapReadOnly(path))
+
+            val changed = random(6)
+            changed.saveRows(path, 2, 4)
+            val loaded = BooleanMatrix.load(path)
+            assertEquals(true, loaded.equals(original, 0, 2))
+            assertEquals(true, loaded.equals(changed, 2, 4))
+            assertEquals(true, loaded.equals(original, 4, height))
+        } finally {
+            Files.deleteIfExists(path)
+        }
+    }
+
+    @Test
+    fun atomicUpdatesAreNotLostUnderContention() {
+        val matrix = BooleanMatrix(width, height)
+        IntStream.range(0, width * height).parallel().forEach {
+            matrix.setAtomic(it % width, it / width, true)
+        }
+        assertEquals(width.toLong() * height, matrix.cardinality())
+
+        val merged = BooleanMatrix(width, height)
+        IntStream.range(0, 8).parallel().forEach { merged.orFrom(random(it)) }
+        val expected = BooleanMatrix(width, height)
+        (0 until 8).forEach { expected.or(random(it)) }
+        assertEquals(expected, merged)
+    }
+}
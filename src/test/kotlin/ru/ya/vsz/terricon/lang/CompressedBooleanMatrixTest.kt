@@ -0,0 +1,105 @@
+package ru.ya.vsz.terricon.lang
+
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class CompressedBooleanMatrixTest {
+    private val width = 70_000
+    private val height = 3
+
+    private fun random(seed: Int, load: Double): BooleanMatrix {
+        val random = Random(seed)
+        val result = BooleanMatrix(width, height)
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                result[i, j] = random.nextDouble() < load
+            }
+        }
+        return result
+    }
+
+    private fun runs(from: Int, to: Int): BooleanMatrix {
+        val result = BooleanMatrix(width, height)
+        for (i in from until to) {
+            result[i, 1] = true
+            result[i + 35_000, 2] = i % 5_000 < 4_000
+        }
+        return result
+    }
+
+    private fun array(vararg values: Int): ArrayContainer {
+        return ArrayContainer(CharArray(values.size) { values[it].toChar() }, values.size)
+    }
+
+    @Test
+    fun setAndGetMatchDense() {
+        val dense = random(1, 0.01)
+        val compressed = CompressedBooleanMatrix(width, height)
+        dense.forEachSetBit { i, j -> compressed[i, j] = true }
+        assertEquals(dense, compressed.toBooleanMatrix())
+        assertEquals(dense.cardinality(), compressed.cardinality())
+
+        compressed[5, 2] = !dense[5, 2]
+        dense[5, 2] = !dense[5, 2]
+        assertEquals(dense[5, 2], compressed[5, 2])
+        assertEquals(dense, compressed.toBooleanMatrix())
+    }
+
+    @Test
+    fun bulkOperationsMatchDense() {
+        val inputs = listOf(
+            random(1, 0.01), random(2, 0.5), runs(1000, 30_000), runs(20_000, 25_000), BooleanMatrix(width, height),
+        )
+        for (a in inputs) {
+            for (b in inputs) {
+                val dense = BooleanMatrix(width, height)
+                assertEquals(a.and(b, dense), CompressedBooleanMatrix.of(a).and(CompressedBooleanMatrix.of(b)).toBooleanMatrix())
+                assertEquals(a.or(b, dense), CompressedBooleanMatrix.of(a).or(CompressedBooleanMatrix.of(b)).toBooleanMatrix())
+                assertEquals(a.xor(b, dense), CompressedBooleanMatrix.of(a).xor(CompressedBooleanMatrix.of(b)).toBooleanMatrix())
+                assertEquals(a.andNot(b, dense), CompressedBooleanMatrix.of(a).andNot(CompressedBooleanMatrix.of(b)).toBooleanMatrix())
+
+                assertEquals(a.and(b, dense), CompressedBooleanMatrix.of(a).and(b).toBooleanMatrix())
+                assertEquals(a.or(b, dense), CompressedBooleanMatrix.of(a).or(b).toBooleanMatrix())
+                assertEquals(a.xor(b, dense), CompressedBooleanMatrix.of(a).xor(b).toBooleanMatrix())
+                assertEquals(a.andNot(b, dense), CompressedBooleanMatrix.of(a).andNot(b).toBooleanMatrix())
+
+                assertEquals(a.and(b, dense), a.or(b, BooleanMatrix(width, height)).and(CompressedBooleanMatrix.of(a).and(b)))
+                assertEquals(a.or(b, dense), BooleanMatrix(width, height).or(a).or(CompressedBooleanMatrix.of(b)))
+                assertEquals(a.xor(b, dense), BooleanMatrix(width, height).or(a).xor(CompressedBooleanMatrix.of(b)))
+                assertEquals(a.andNot(b, dense), BooleanMatrix(width, height).or(a).andNot(CompressedBooleanMatrix.of(b)))
+            }
+        }
+    }
+
+    @Test
+    fun sparseAndRunMasksAreSmall() {
+        val denseBytes = width.toLong() * height / 8
+        assertTrue(CompressedBooleanMatrix.of(random(3, 0.01)).sizeInBytes() * 5 < denseBytes)
+        assertTrue(CompressedBooleanMatrix.of(runs(1000, 30_000)).sizeInBytes() * 100 < denseBytes)
+
+        val full = CompressedBooleanMatrix(width, height)
+        full.fill(true)
+        assertEquals(width.toLong() * height, full.cardinality())
+        full[69_999, 2] = false
+        assertEquals(width.toLong() * height - 1, full.cardinality())
+    }
+
+    @Test
+    fun containerOperationsKeepTheirShape() {
+        val sparse = array(1, 5, 70, 40_000).xor(array(5, 71, 50_000))
+        assertTrue(sparse is ArrayContainer)
+        assertEquals(listOf(1, 70, 71, 40_000, 50_000), buildList { sparse.forEach { add(it) } })
+
+        val runs = RunContainer.full(30_000).xor(RunContainer.full(10_000))
+        assertTrue(runs is RunContainer)
+        assertEquals(20_000, runs.cardinality)
+        assertTrue(10_000 in runs && 9_999 !in runs && 29_999 in runs && 30_000 !in runs)
+
+        val bitmap = BitmapContainer()
+        bitmap.addRange(0, 10_000)
+        assertEquals(9_998, bitmap.xor(array(3, 10_000, 10_001)).andNot(array(0, 1, 10_000)).cardinality)
+        assertEquals(10_000, bitmap.cardinality)
+    }
+}
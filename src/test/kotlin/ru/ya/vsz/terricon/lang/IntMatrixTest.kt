@@ -0,0 +1,274 @@
+package ru.ya.vsz.terricon.lang
+
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
+import kotlin.test.assertTrue
+
+class IntMatrixTest {
+    private val threads = 4
+    private val iterations = 10_000
+
+    private fun random(width: Int, height: Int, seed: Int, bound: Int = 1000): IntMatrix {
+        val random = Random(seed)
+        val result = IntMatrix(width, height)
+        for (j in 0 until height) {
+            for (i in 0 until width) {
+                result[i, j] = random.nextInt(-bound, bound)
+            }
+        }
+        return result
+    }
+
+    private fun expectedProduct(a: IntMatrix, b: IntMatrix): IntMatrix {
+        val result = IntMatrix(b.width, a.height)
+        for (j in 0 until a.height) {
+            for (i in 0 until b.width) {
+                var sum = 0
+                for (k in 0 until a.width) {
+                    sum += a[k, j] * b[i, k]
+                }
+                result[i, j] = sum
+            }
+        }
+        return result
+    }
+
+    private fun expected(a: IntMatrix, operation: (Int, Int) -> Int): IntMatrix {
+        val result = IntMatrix(a.width, a.height)
+        for (j in 0 until a.height) {
+            for (i in 0 until a.width) {
+                result[i, j] = operation(i, j)
+            }
+        }
+        return result
+    }
+
+    /**
+     * Runs [action] on [threads] threads started together, rethrows the first failure.
+     */
+    private fun concurrently(action: (Int) -> Unit) {
+        val start = CountDownLatch(1)
+        val failures = arrayOfNulls<Throwable>(threads)
+        val workers = List(threads) { thread ->
+            Thread {
+                start.await()
+                try {
+                    action(thread)
+                } catch (ex: Throwable) {
+                    failures[thread] = ex
+                }
+            }.apply { start() }
+        }
+        start.countDown()
+        workers.forEach { it.join() }
+        failures.filterNotNull().firstOrNull()?.let { throw it }
+    }
+
+    @Test
+    fun atomicUpdatesAreNotLost() {
+        val matrix = IntMatrix(3, 2)
+        concurrently { thread ->
+            repeat(iterations) {
+                matrix.incrementAndGet(0, 0)
+                matrix.addAndGet(1, 0, thread + 1)
+                matrix.accumulate(2, 1) { it + 2 }
+            }
+        }
+        assertEquals(threads * iterations, matrix[0, 0])
+        assertEquals((1..threads).sum() * iterations, matrix[1, 0])
+        assertEquals(2 * threads * iterations, matrix[2, 1])
+        assertEquals(0, matrix[1, 1])
+    }
+
+    @Test
+    fun compareAndSetFailsOnStaleValue() {
+        val matrix = IntMatrix(2, 2)
+        assertTrue(matrix.compareAndSet(1, 1, 0, 5))
+        assertFalse(matrix.compareAndSet(1, 1, 0, 7))
+        assertEquals(5, matrix[1, 1])
+        assertEquals(6, matrix.incrementAndGet(1, 1))
+        assertEquals(6, matrix.accumulate(1, 1) { it })
+        assertEquals(0, matrix[0, 1])
+    }
+
+    @Test
+    fun compareAndSetWinsOncePerValue() {
+        val matrix = IntMatrix(1, 1)
+        val wins = IntMatrix(threads, 1)
+        concurrently { thread ->
+            while (true) {
+                val value = matrix[0, 0]
+                if (value >= iterations) {
+                    break
+                }
+                if (matrix.compareAndSet(0, 0, value, value + 1)) {
+                    wins.incrementAndGet(thread, 0)
+                }
+            }
+        }
+        assertEquals(iterations, matrix[0, 0])
+        assertEquals(iterations, (0 until threads).sumOf { wins[it, 0] })
+    }
+
+    @Test
+    fun stripedMatrixCountsExactly() {
+        val matrix = StripedIntMatrix(5, 3, 3)
+        concurrently { thread ->
+            repeat(iterations) {
+                matrix.increment(it % 5, 0)
+                matrix.add(thread, 2, 3)
+            }
+        }
+        val snapshot = matrix.snapshot()
+        for (i in 0 until 5) {
+            assertEquals(threads * iterations / 5, matrix[i, 0])
+            assertEquals(matrix[i, 0], snapshot[i, 0])
+            assertEquals(0, snapshot[i, 1])
+            assertEquals(if (i < threads) 3 * iterations else 0, snapshot[i, 2])
+        }
+    }
+
+    @Test
+    fun productMatchesNaiveLoop() {
+        // Past BLOCK_SIZE in every dimension and past PARALLEL_THRESHOLD multiply-adds
+        val a = random(130, 100, 1)
+        val b = random(90, 130, 2)
+        val expected = expectedProduct(a, b)
+        assertEquals(expected, a * b)
+        assertEquals(expected, a.timesExact(b))
+        val wrapping = random(3, 5, 3, Int.MAX_VALUE)
+        val other = random(7, 3, 4, Int.MAX_VALUE)
+        assertEquals(expectedProduct(wrapping, other), wrapping * other)
+        assertFailsWith<IllegalArgumentException> { a * a }
+    }
+
+    @Test
+    fun exactProductThrowsOnlyWhenResultOverflows() {
+        val a = IntMatrix(3, 1)
+        val b = IntMatrix(1, 3)
+        a[0, 0] = 1 shl 30
+        a[1, 0] = 1 shl 30
+        a[2, 0] = -(1 shl 30)
+        for (k in 0 until 3) {
+            b[0, k] = 1
+        }
+        assertEquals(1 shl 30, a.timesExact(b)[0, 0])
+        b[0, 2] = 0
+        assertFailsWith<ArithmeticException> { a.timesExact(b) }
+        assertEquals(Int.MIN_VALUE, (a * b)[0, 0])
+    }
+
+    @Test
+    fun transposeAndScalarOperations() {
+        val a = random(130, 70, 5, Int.MAX_VALUE)
+        val b = random(130, 70, 6, Int.MAX_VALUE)
+        val transposed = a.transpose()
+        assertEquals(70, transposed.width)
+        assertEquals(130, transposed.height)
+        assertEquals(expected(transposed) { i, j -> a[j, i] }, transposed)
+        assertEquals(a, transposed.transpose())
+        assertEquals(expected(a) { i, j -> a[i, j] + 7 }, a + 7)
+        assertEquals(expected(a) { i, j -> a[i, j] * -3 }, a * -3)
+        assertEquals(expected(a) { i, j -> a[i, j] + b[i, j] }, a + b)
+        assertEquals(expected(a) { i, j -> a[i, j] - b[i, j] }, a - b)
+        assertEquals(expected(a) { i, j -> a[i, j] * b[i, j] }, a.timesCells(b))
+    }
+
+    @Test
+    fun equalsAndHashCodeCompareCells() {
+        val a = random(65, 3, 7)
+        val copy = a + 0
+        assertEquals(a, copy)
+        assertEquals(a.hashCode(), copy.hashCode())
+        copy[64, 2]++
+        assertNotEquals(a, copy)
+        assertNotEquals(a.hashCode(), copy.hashCode())
+        assertNotEquals(a, a.transpose())
+        assertFalse(a.equals("a"))
+    }
+
+    @Test
+    fun kernelsMatchNaiveLoops() {
+        val kernels = listOf(ScalarIntKernels, IntKernels.INSTANCE)
+        val random = Random(8)
+        // Lengths around the lane counts and word size, so the vector kernels leave scalar tails
+        for (length in listOf(0, 1, 3, 7, 8, 9, 15, 16, 17, 31, 32, 33, 63, 65, 100, 257)) {
+            val a = IntArray(length + 5) { random.nextInt(-4, 4) * if (it % 11 == 0) Int.MAX_VALUE else 1 }
+            val b = IntArray(a.size) { random.nextInt(-4, 4) }
+            val from = 5
+            val to = from + length
+            for (kernel in kernels) {
+                val name = "${kernel.javaClass.simpleName} on $length"
+                assertEquals((from until to).sumOf { a[it].toLong() }, kernel.sum(a, from, to), name)
+                assertEquals((from until to).minOfOrNull { a[it] } ?: Int.MAX_VALUE, kernel.min(a, from, to), name)
+                assertEquals((from until to).maxOfOrNull { a[it] } ?: Int.MIN_VALUE, kernel.max(a, from, to), name)
+                assertEquals((from until to).count { a[it] == 1 }, kernel.count(a, from, to, 1), name)
+                val sums = IntArray(a.size)
+                kernel.add(a, b, sums)
+                assertContentEquals(IntArray(a.size) { a[it] + b[it] }, sums, name)
+                val products = IntArray(a.size)
+                kernel.multiply(a, b, products)
+                assertContentEquals(IntArray(a.size) { a[it] * b[it] }, products, name)
+                for (comparison in IntComparison.values()) {
+                    val expected = IntArray((length + 31) / 32 + 1)
+                    val expectedPairs = IntArray(expected.size)
+                    for (k in 0 until length) {
+                        if (comparison.test(a[from + k], 1)) {
+                            expected[k ushr 5] = expected[k ushr 5] or (1 shl k)
+                        }
+                        if (comparison.test(a[from + k], b[from + k])) {
+                            expectedPairs[k ushr 5] = expectedPairs[k ushr 5] or (1 shl k)
+                        }
+                    }
+                    val words = IntArray(expected.size)
+                    kernel.compare(a, from, to, comparison, 1, words)
+                    assertContentEquals(expected, words, "$name $comparison")
+                    val pairWords = IntArray(expected.size)
+                    kernel.compare(a, b, from, to, comparison, pairWords)
+                    assertContentEquals(expectedPairs, pairWords, "$name $comparison")
+                }
+            }
+        }
+    }
+
+    @Test
+    fun mappedMatrixIsProcessedBySegments() {
+        // Rows longer than a segment, with a shorter last segment
+        val a = random(70_001, 3, 9, 5)
+        val b = random(70_001, 3, 10, 5)
+        val path = Files.createTempFile("int-matrix", ".bin")
+        val otherPath = Files.createTempFile("int-matrix", ".bin")
+        try {
+            Files.delete(path)
+            Files.delete(otherPath)
+            val mapped = IntMatrix.map(path, a.width, a.height)
+            val otherMapped = IntMatrix.map(otherPath, b.width, b.height)
+            for (j in 0 until a.height) {
+                for (i in 0 until a.width) {
+                    mapped[i, j] = a[i, j]
+                    otherMapped[i, j] = b[i, j]
+                }
+            }
+            assertEquals(a.sum(), mapped.sum())
+            assertEquals(a.min(), mapped.min())
+            assertEquals(a.max(), mapped.max())
+            assertEquals(a.count(2), mapped.count(2))
+            assertEquals(a + b, mapped + otherMapped)
+            assertEquals(a + b, mapped + b)
+            assertEquals(a.timesCells(b), a.timesCells(otherMapped))
+            assertEquals(a.threshold(3), mapped.threshold(3))
+            assertEquals(a.compare(IntComparison.LESS, b), mapped.compare(IntComparison.LESS, otherMapped))
+            assertEquals(a.compare(IntComparison.EQUAL, b), a.compare(IntComparison.EQUAL, otherMapped))
+        } finally {
+            Files.deleteIfExists(path)
+            Files.deleteIfExists(otherPath)
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ru.ya.vsz.terricon.lang
+
+import java.util.stream.IntStream
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class PackedMatrixTest {
+    private val width = 37
+    private val height = 3
+
+    @Test
+    fun cellsMatchIntMatrixForEveryWidth() {
+        for (bits in listOf(1, 2, 4, 8, 16, 32)) {
+            val packed = PackedMatrix(width, height, bits)
+            val expected = IntMatrix(width, height)
+            val random = Random(bits)
+            repeat(500) {
+                val i = random.nextInt(width)
+                val j = random.nextInt(height)
+                val value = random.nextInt() and packed.maxValue
+                packed[i, j] = value
+                expected[i, j] = value
+            }
+            for (j in 0 until height) {
+                for (i in 0 until width) {
+                    assertEquals(expected[i, j], packed[i, j])
+                }
+            }
+        }
+    }
+
+    @Test
+    fun countersSaturate() {
+        val packed = PackedMatrix(width, height, 4)
+        repeat(20) { packed.incrementSaturating(5, 1) }
+        assertEquals(15, packed[5, 1])
+        assertEquals(0, packed[4, 1])
+        assertEquals(0, packed[6, 1])
+        repeat(20) { packed.decrementSaturating(5, 1) }
+        assertEquals(0, packed[5, 1])
+        assertEquals(1L, PackedMatrix(width, height, 4).apply { incrementSaturating(36, 2) }.countNonZero())
+        assertFailsWith<IllegalArgumentException> { packed[0, 0] = 16 }
+        assertFailsWith<IllegalArgumentException> { PackedMatrix(width, height, 3) }
+    }
+
+    @Test
+    fun fillKeepsPaddingClear() {
+        val packed = PackedMatrix(width, height, 2)
+        packed.fill(3)
+        assertEquals(width.toLong() * height, packed.countNonZero())
+        assertEquals(3, packed[width - 1, height - 1])
+    }
+
+    @Test
+    fun atomicIncrementsAreNotLost() {
+        val packed = PackedMatrix(width, height, 8)
+        IntStream.range(0, width * 100).parallel().forEach { packed.incrementSaturatingAtomic(it % width, 0) }
+        for (i in 0 until width) {
+            assertEquals(100, packed[i, 0])
+        }
+    }
+}